@@ -60,9 +60,15 @@ import org.onosproject.net.flow.FlowRuleService;
 import org.onlab.packet.Ethernet;
 import org.onlab.packet.MacAddress;
 
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.onlab.util.Tools.groupedThreads;
 
 /**
  * Skeletal ONOS application component.
@@ -73,6 +79,13 @@ public class AppComponent {
     private static final int DEFAULT_TIMEOUT = 10;
     private static final int DEFAULT_PRIORITY = 40001;
 
+    // per device learning table bounds, the aging timers tick every second
+    private static final int MAC_TABLE_MAX_ENTRIES = 1 << 17;
+    private static final long MAC_MAX_AGE_MS = 300 * 1000;
+    private static final int MAC_TICK_PERIOD = 1;
+    private static final int MAC_REPORT_PERIOD = 60;
+    private static final boolean MAC_TABLE_OFF_HEAP = true;
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
@@ -91,8 +104,11 @@ public class AppComponent {
     protected CoreService coreService;
   
     
-    protected Map<DeviceId, Map<MacAddress, PortNumber>> macTables = new ConcurrentHashMap();
+    protected Map<DeviceId, MacTable> macTables = new ConcurrentHashMap();
+    // device -> dst mac -> src macs handler() installed a flow for, kept until the dst ages out or moves
+    private Map<DeviceId, Map<MacAddress, Set<MacAddress>>> installedFlows = new ConcurrentHashMap();
     private ApplicationId appId;
+    private ScheduledExecutorService macSweeper;
     private ReactivePacketProcessor processor = new ReactivePacketProcessor();
 
     @Activate
@@ -105,6 +121,12 @@ public class AppComponent {
         selector.matchEthType(Ethernet.TYPE_IPV4); //.matchEthType(Ethernet.TYPE_ARP)
         packetService.requestPackets(selector.build(), PacketPriority.REACTIVE, appId);
 
+        macSweeper = Executors.newSingleThreadScheduledExecutor(groupedThreads("nctu/testapp", "mac-sweep", log));
+        macSweeper.scheduleAtFixedRate(this::expireMacTables, MAC_TICK_PERIOD,
+                                       MAC_TICK_PERIOD, TimeUnit.SECONDS);
+        macSweeper.scheduleAtFixedRate(this::reportMacTables, MAC_REPORT_PERIOD,
+                                       MAC_REPORT_PERIOD, TimeUnit.SECONDS);
+
         log.info("Started", appId.id());
     }
 
@@ -117,6 +139,10 @@ public class AppComponent {
 
         packetService.removeProcessor(processor);
         processor = null;
+
+        macSweeper.shutdownNow();
+        macTables.clear();
+        installedFlows.clear();
         log.info("Stopped");
     }
 
@@ -133,7 +159,6 @@ public class AppComponent {
         
             InboundPacket pkt = context.inPacket();
             Ethernet ethPkt = pkt.parsed();
-            macTables.putIfAbsent(pkt.receivedFrom().deviceId(), new ConcurrentHashMap());
 
             //not ethernet packet
             if (ethPkt == null) {
@@ -186,35 +211,32 @@ public class AppComponent {
         Ethernet ethPkt = pkt.parsed();
         ConnectPoint cpDevice = pkt.receivedFrom();
 
-        Map<MacAddress, PortNumber> macTable_device = macTables.get(cpDevice.deviceId());
+        MacTable macTable_device = macTables.computeIfAbsent(cpDevice.deviceId(),
+                k -> new MacTable(MAC_TABLE_MAX_ENTRIES, MAC_MAX_AGE_MS, MAC_TABLE_OFF_HEAP));
         MacAddress srcMac = ethPkt.getSourceMAC();
         MacAddress dstMac = ethPkt.getDestinationMAC();
-        macTable_device.put(srcMac, cpDevice.port());
-        PortNumber outPort = macTable_device.get(dstMac);
+        long now = System.currentTimeMillis();
+        long oldPort = macTable_device.learn(srcMac, cpDevice.port(), now);
+        if (oldPort != MacTable.NEW_ENTRY && oldPort != cpDevice.port().toLong()) {
+            log.info("[MOVE] {} moved from port {} to {} on {}",
+                     srcMac, oldPort, cpDevice.port(), cpDevice.deviceId());
+            removeFlowsTo(cpDevice.deviceId(), srcMac, PortNumber.portNumber(oldPort));
+        }
+        PortNumber outPort = macTable_device.lookup(dstMac, now);
         //log.info("Device {} learn {} from port {}.",cpDevice.deviceId(),srcMac,cpDevice.port());
 
         if (outPort != null) {
             //log.info("Find output port {} on {} !!",outPort,cpDevice.deviceId());
-            
-            TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
-
-            selectorBuilder.matchEthSrc(srcMac)
-                    .matchEthDst(dstMac);
-
-            TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                    .setOutput(outPort)
-                    .build();
-
-            ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
-                    .withSelector(selectorBuilder.build())
-                    .withTreatment(treatment)
-                    .withPriority(DEFAULT_PRIORITY)
-                    .withFlag(ForwardingObjective.Flag.VERSATILE)
-                    .fromApp(appId)
-                    .makeTemporary(DEFAULT_TIMEOUT)
-                    .add();
 
+            ForwardingObjective forwardingObjective = forwardingBuilder(srcMac, dstMac, outPort).add();
             flowObjectiveService.forward(context.inPacket().receivedFrom().deviceId(),  forwardingObjective);
+            // compute keeps the update atomic against a move or aging dropping the entry
+            installedFlows.computeIfAbsent(cpDevice.deviceId(), k -> new ConcurrentHashMap<>())
+                    .compute(dstMac, (k, sources) -> {
+                        Set<MacAddress> flows = sources == null ? ConcurrentHashMap.newKeySet() : sources;
+                        flows.add(srcMac);
+                        return flows;
+                    });
 
             context.treatmentBuilder().setOutput(outPort);
             context.send();
@@ -224,6 +246,74 @@ public class AppComponent {
         }
     }
 
+    private ForwardingObjective.Builder forwardingBuilder(MacAddress srcMac, MacAddress dstMac,
+                                                         PortNumber outPort){
+        TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
+
+        selectorBuilder.matchEthSrc(srcMac)
+                .matchEthDst(dstMac);
+
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                .setOutput(outPort)
+                .build();
+
+        return DefaultForwardingObjective.builder()
+                .withSelector(selectorBuilder.build())
+                .withTreatment(treatment)
+                .withPriority(DEFAULT_PRIORITY)
+                .withFlag(ForwardingObjective.Flag.VERSATILE)
+                .fromApp(appId)
+                .makeTemporary(DEFAULT_TIMEOUT);
+    }
+
+    // Removes the flows still pointing the moved MAC at its old port, the ones
+    // already gone on idle timeout included, removing those is harmless
+    private void removeFlowsTo(DeviceId deviceId, MacAddress dstMac, PortNumber oldPort){
+        Map<MacAddress, Set<MacAddress>> deviceFlows = installedFlows.get(deviceId);
+        Set<MacAddress> flows = deviceFlows == null ? null : deviceFlows.remove(dstMac);
+        if (flows == null) {
+            return;
+        }
+        for (MacAddress source : flows) {
+            flowObjectiveService.forward(deviceId, forwardingBuilder(source, dstMac, oldPort).remove());
+        }
+        log.info("[MOVE] Removed {} flows to {} on {}", flows.size(), dstMac, deviceId);
+    }
+
+    // Fires the aging timers that are due, no table is scanned
+    private void expireMacTables(){
+        long now = System.currentTimeMillis();
+        for (Map.Entry<DeviceId, MacTable> entry : macTables.entrySet()) {
+            List<MacAddress> expired = entry.getValue().expire(now);
+            if (expired.isEmpty()) {
+                continue;
+            }
+            Map<MacAddress, Set<MacAddress>> deviceFlows = installedFlows.get(entry.getKey());
+            if (deviceFlows != null) {
+                for (MacAddress mac : expired) {
+                    deviceFlows.remove(mac);
+                }
+            }
+            log.info("[MAC] {} entries aged out or evicted on {}", expired.size(), entry.getKey());
+        }
+    }
+
+    // Reports what the tables hold
+    private void reportMacTables(){
+        int entries = 0;
+        int timers = 0;
+        long bytes = 0;
+        long evicted = 0;
+        for (MacTable macTable : macTables.values()) {
+            entries += macTable.size();
+            timers += macTable.pendingTimers();
+            bytes += macTable.memoryBytes();
+            evicted += macTable.evictions();
+        }
+        log.info("[MAC] {} devices, {} entries, {} timers, {} bytes, {} evicted",
+                 macTables.size(), entries, timers, bytes, evicted);
+    }
+
     // Indicates whether this is a control packet, e.g. LLDP, BDDP
     private boolean isControlPacket(Ethernet eth) {
         short type = eth.getEtherType();
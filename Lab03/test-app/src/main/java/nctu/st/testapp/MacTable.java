@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.PortNumber;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * MAC learning table of one device.
+ *
+ * Open addressing with linear probing over a flat buffer of 24 byte slots:
+ * the MAC packed into a long, the port, the second it was last seen and the
+ * deadline of its aging timer. The buffer may live off-heap. Entries age
+ * out after maxAge, and once the table holds maxEntries the stalest entry
+ * near the new key is evicted. Entries dropped to make room are handed out
+ * by the next expire, together with the ones that aged out.
+ *
+ * Aging runs on a timer wheel. Refreshing an entry only moves its last-seen
+ * second; when the armed timer fires it either expires the entry or arms a
+ * new one for the remaining time, so a busy MAC costs one timer per maxAge.
+ */
+public class MacTable {
+
+    private static final int SLOT_BYTES = 24;
+    private static final int PORT_OFFSET = 8;
+    private static final int SEEN_OFFSET = 12;
+    private static final int DEADLINE_OFFSET = 16;
+    private static final int MIN_CAPACITY = 64;
+    private static final int MAX_WHEEL_BUCKETS = 4096;
+
+    /** Returned by learn for a MAC that was not in the table. */
+    public static final long NEW_ENTRY = -1;
+
+    // set on every stored key so that an all-zero slot means empty
+    private static final long USED = 1L << 48;
+    private static final int EVICT_WINDOW = 16;
+
+    private final int maxEntries;
+    private final int maxAgeSeconds;
+    private final boolean offHeap;
+    private final long epochMillis;
+    private final TimerWheel wheel;
+    private final TimerWheel.Handler onTimer = this::onTimer;
+    private List<MacAddress> expired;
+    private List<MacAddress> dropped;
+
+    private ByteBuffer slots;
+    private int mask;
+    private int size;
+    private long evictions;
+
+    public MacTable(int maxEntries, long maxAgeMillis, boolean offHeap){
+        this.maxEntries = maxEntries;
+        this.maxAgeSeconds = (int) ((maxAgeMillis + 999) / 1000);
+        this.offHeap = offHeap;
+        this.epochMillis = System.currentTimeMillis();
+        this.wheel = new TimerWheel(Math.min(maxAgeSeconds + 1, MAX_WHEEL_BUCKETS), 0);
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity){
+        slots = offHeap ? ByteBuffer.allocateDirect(capacity * SLOT_BYTES)
+                        : ByteBuffer.allocate(capacity * SLOT_BYTES);
+        slots.order(ByteOrder.nativeOrder());
+        mask = capacity - 1;
+    }
+
+    /**
+     * Records that the MAC was seen behind the port. Returns the port it was
+     * known on before, NEW_ENTRY if it was not known, so callers can tell a
+     * station move from a refresh.
+     */
+    public synchronized long learn(MacAddress mac, PortNumber port, long now){
+        long key = mac.toLong() | USED;
+        int seen = seconds(now);
+        int i = find(key);
+        if (i >= 0) {
+            long previous = slots.getInt(i * SLOT_BYTES + PORT_OFFSET) & 0xffffffffL;
+            slots.putInt(i * SLOT_BYTES + PORT_OFFSET, (int) port.toLong());
+            slots.putInt(i * SLOT_BYTES + SEEN_OFFSET, seen);
+            return previous;
+        }
+
+        // aged entries go with their timers, a full table only looks at the probe window
+        if (size >= maxEntries) {
+            evictNear(key);
+        }
+        if ((size + 1) * 4 > (mask + 1) * 3) {
+            resize((mask + 1) * 2);
+        }
+        int deadline = seen + maxAgeSeconds;
+        insert(key, (int) port.toLong(), seen, deadline);
+        wheel.schedule(key, deadline);
+        size++;
+        return NEW_ENTRY;
+    }
+
+    /**
+     * Expires every entry whose timer is due, returns the MACs removed,
+     * including the ones learn dropped to make room since the last call.
+     */
+    public synchronized List<MacAddress> expire(long now){
+        expired = dropped;
+        dropped = null;
+        wheel.advance(seconds(now), onTimer);
+        List<MacAddress> removed = expired;
+        expired = null;
+        return removed == null ? Collections.<MacAddress>emptyList() : removed;
+    }
+
+    // a timer whose deadline no longer matches its slot was superseded
+    private void onTimer(long key, int deadline){
+        int i = find(key);
+        if (i < 0 || slots.getInt(i * SLOT_BYTES + DEADLINE_OFFSET) != deadline) {
+            return;
+        }
+        int due = slots.getInt(i * SLOT_BYTES + SEEN_OFFSET) + maxAgeSeconds;
+        if (due > wheel.currentTick()) {
+            slots.putInt(i * SLOT_BYTES + DEADLINE_OFFSET, due);
+            wheel.schedule(key, due);
+            return;
+        }
+        delete(i);
+        size--;
+        if (expired == null) {
+            expired = new ArrayList<MacAddress>();
+        }
+        expired.add(MacAddress.valueOf(key & (USED - 1)));
+    }
+
+    /** Port the MAC was learned on, null if unknown or aged out. */
+    public synchronized PortNumber lookup(MacAddress mac, long now){
+        int i = find(mac.toLong() | USED);
+        if (i < 0) {
+            return null;
+        }
+        if (slots.getInt(i * SLOT_BYTES + SEEN_OFFSET) + maxAgeSeconds <= seconds(now)) {
+            return null;
+        }
+        return PortNumber.portNumber(slots.getInt(i * SLOT_BYTES + PORT_OFFSET) & 0xffffffffL);
+    }
+
+    /** Drops every entry last seen before the cutoff, returns the MACs removed. */
+    public synchronized List<MacAddress> removeOlderThan(long cutoffMillis){
+        int cutoff = seconds(cutoffMillis);
+        List<MacAddress> removed = new ArrayList<MacAddress>();
+        int i = 0;
+        while (i <= mask) {
+            if (used(i) && slots.getInt(i * SLOT_BYTES + SEEN_OFFSET) < cutoff) {
+                removed.add(MacAddress.valueOf(slots.getLong(i * SLOT_BYTES) & (USED - 1)));
+                // the slot is refilled by a shifted entry, so look at it again
+                delete(i);
+            } else {
+                i++;
+            }
+        }
+        size -= removed.size();
+        return removed;
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public synchronized int capacity(){
+        return mask + 1;
+    }
+
+    public synchronized long evictions(){
+        return evictions;
+    }
+
+    /** Timers held by the wheel, including superseded ones not yet fired. */
+    public synchronized int pendingTimers(){
+        return wheel.size();
+    }
+
+    /** Bytes held by the slot buffer, on or off the heap. */
+    public synchronized long memoryBytes(){
+        return (long) slots.capacity();
+    }
+
+    public boolean isOffHeap(){
+        return offHeap;
+    }
+
+    private int seconds(long millis){
+        return (int) Math.floorDiv(millis - epochMillis, 1000L);
+    }
+
+    private boolean used(int i){
+        return slots.getLong(i * SLOT_BYTES) != 0;
+    }
+
+    private static int hash(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int find(long key){
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            long k = slots.getLong(i * SLOT_BYTES);
+            if (k == key) {
+                return i;
+            }
+            if (k == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void insert(long key, int port, int seen, int deadline){
+        int i = hash(key) & mask;
+        while (used(i)) {
+            i = (i + 1) & mask;
+        }
+        slots.putLong(i * SLOT_BYTES, key);
+        slots.putInt(i * SLOT_BYTES + PORT_OFFSET, port);
+        slots.putInt(i * SLOT_BYTES + SEEN_OFFSET, seen);
+        slots.putInt(i * SLOT_BYTES + DEADLINE_OFFSET, deadline);
+    }
+
+    // backward shift deletion, keeps probe chains intact without tombstones
+    private void delete(int i){
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long k = slots.getLong(j * SLOT_BYTES);
+            if (k == 0) {
+                break;
+            }
+            int home = hash(k) & mask;
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                copySlot(j, i);
+                i = j;
+            }
+        }
+        slots.putLong(i * SLOT_BYTES, 0L);
+        slots.putLong(i * SLOT_BYTES + PORT_OFFSET, 0L);
+        slots.putLong(i * SLOT_BYTES + DEADLINE_OFFSET, 0L);
+    }
+
+    private void copySlot(int from, int to){
+        slots.putLong(to * SLOT_BYTES, slots.getLong(from * SLOT_BYTES));
+        slots.putLong(to * SLOT_BYTES + PORT_OFFSET, slots.getLong(from * SLOT_BYTES + PORT_OFFSET));
+        slots.putLong(to * SLOT_BYTES + DEADLINE_OFFSET, slots.getLong(from * SLOT_BYTES + DEADLINE_OFFSET));
+    }
+
+    // drops the stalest entry among the first slots probed for the key
+    private void evictNear(long key){
+        int victim = -1;
+        int oldest = Integer.MAX_VALUE;
+        int i = hash(key) & mask;
+        for (int n = 0; n <= mask && (n < EVICT_WINDOW || victim < 0); n++, i = (i + 1) & mask) {
+            if (!used(i)) {
+                continue;
+            }
+            int seen = slots.getInt(i * SLOT_BYTES + SEEN_OFFSET);
+            if (seen < oldest) {
+                oldest = seen;
+                victim = i;
+            }
+        }
+        if (victim >= 0) {
+            dropped().add(MacAddress.valueOf(slots.getLong(victim * SLOT_BYTES) & (USED - 1)));
+            delete(victim);
+            size--;
+            evictions++;
+        }
+    }
+
+    private List<MacAddress> dropped(){
+        if (dropped == null) {
+            dropped = new ArrayList<MacAddress>();
+        }
+        return dropped;
+    }
+
+    private void resize(int capacity){
+        ByteBuffer old = this.slots;
+        int oldCapacity = mask + 1;
+        allocate(capacity);
+        for (int i = 0; i < oldCapacity; i++) {
+            long key = old.getLong(i * SLOT_BYTES);
+            if (key != 0) {
+                insert(key, old.getInt(i * SLOT_BYTES + PORT_OFFSET),
+                       old.getInt(i * SLOT_BYTES + SEEN_OFFSET),
+                       old.getInt(i * SLOT_BYTES + DEADLINE_OFFSET));
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timer wheel of long keys with integer tick deadlines.
+ *
+ * A timer lands in bucket deadline % size; deadlines further out than one
+ * turn of the wheel are simply carried over when their bucket comes round.
+ * There is no cancel: owners check on expiry whether a timer is still the
+ * one they armed, which keeps schedule and expiry O(1) amortized.
+ */
+public class TimerWheel {
+
+    /** Called for every timer whose deadline has passed. */
+    public interface Handler {
+        void expired(long key, int deadline);
+    }
+
+    private static final int INITIAL_BUCKET = 4;
+
+    private final int mask;
+    private final long[][] keys;
+    private final int[][] deadlines;
+    private final int[] counts;
+    private int currentTick;
+    private int size;
+
+    public TimerWheel(int minBuckets, int startTick){
+        int buckets = Integer.highestOneBit(Math.max(minBuckets, 2) - 1) << 1;
+        this.mask = buckets - 1;
+        this.keys = new long[buckets][];
+        this.deadlines = new int[buckets][];
+        this.counts = new int[buckets];
+        this.currentTick = startTick;
+    }
+
+    public void schedule(long key, int deadline){
+        if (deadline <= currentTick) {
+            deadline = currentTick + 1;
+        }
+        add(deadline & mask, key, deadline);
+        size++;
+    }
+
+    /** Moves the wheel up to the tick and fires everything that is due. */
+    public void advance(int tick, Handler handler){
+        if (tick <= currentTick) {
+            return;
+        }
+        int start = currentTick;
+        int turns = Math.min(tick - start, mask + 1);
+        // handlers that schedule again land after this tick
+        currentTick = tick;
+        for (int t = 1; t <= turns; t++) {
+            int b = (start + t) & mask;
+            int n = counts[b];
+            if (n == 0) {
+                continue;
+            }
+            long[] bucketKeys = keys[b];
+            int[] bucketDeadlines = deadlines[b];
+            keys[b] = null;
+            deadlines[b] = null;
+            counts[b] = 0;
+            size -= n;
+            for (int i = 0; i < n; i++) {
+                if (bucketDeadlines[i] > tick) {
+                    add(b, bucketKeys[i], bucketDeadlines[i]);
+                    size++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (bucketDeadlines[i] <= tick) {
+                    handler.expired(bucketKeys[i], bucketDeadlines[i]);
+                }
+            }
+        }
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int currentTick(){
+        return currentTick;
+    }
+
+    private void add(int b, long key, int deadline){
+        int n = counts[b];
+        if (keys[b] == null) {
+            keys[b] = new long[INITIAL_BUCKET];
+            deadlines[b] = new int[INITIAL_BUCKET];
+        } else if (n == keys[b].length) {
+            keys[b] = Arrays.copyOf(keys[b], n * 2);
+            deadlines[b] = Arrays.copyOf(deadlines[b], n * 2);
+        }
+        keys[b][n] = key;
+        deadlines[b][n] = deadline;
+        counts[b] = n + 1;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import org.junit.Test;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.PortNumber;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the MAC learning table.
+ */
+public class MacTableTest {
+
+    private static final long AGE = 60 * 1000;
+
+    private static MacAddress mac(long i){
+        return MacAddress.valueOf(0x020000000000L + i);
+    }
+
+    @Test
+    public void learnAndMove() {
+        MacTable table = new MacTable(1000, AGE, true);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 500; i++) {
+            table.learn(mac(i), PortNumber.portNumber(i % 7 + 1), now);
+        }
+        assertEquals(500, table.size());
+        assertEquals(PortNumber.portNumber(3), table.lookup(mac(2), now));
+        assertNull(table.lookup(mac(600), now));
+
+        assertEquals(3, table.learn(mac(2), PortNumber.portNumber(9), now));
+        assertEquals(MacTable.NEW_ENTRY, table.learn(mac(700), PortNumber.portNumber(1), now));
+        assertEquals(501, table.size());
+        assertEquals(PortNumber.portNumber(9), table.lookup(mac(2), now));
+        assertEquals(table.capacity() * 24L, table.memoryBytes());
+    }
+
+    @Test
+    public void aging() {
+        MacTable table = new MacTable(1000, AGE, false);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            table.learn(mac(i), PortNumber.portNumber(1), i < 100 ? now : now + AGE);
+        }
+        assertNull(table.lookup(mac(5), now + AGE + 1000));
+        List<MacAddress> removed = table.removeOlderThan(now + 1000);
+        assertEquals(100, removed.size());
+        assertTrue(removed.contains(mac(5)));
+        assertEquals(200, table.size());
+        for (int i = 100; i < 300; i++) {
+            assertEquals(PortNumber.portNumber(1), table.lookup(mac(i), now + AGE));
+        }
+    }
+
+    @Test
+    public void timerExpiry() {
+        MacTable table = new MacTable(1000, AGE, true);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            table.learn(mac(i), PortNumber.portNumber(1), now);
+        }
+        // refreshed entries survive their first timer and are re-armed
+        for (int i = 0; i < 5; i++) {
+            table.learn(mac(i), PortNumber.portNumber(1), now + AGE / 2);
+        }
+        assertTrue(table.expire(now + AGE / 2).isEmpty());
+        List<MacAddress> expired = table.expire(now + AGE + 2000);
+        assertEquals(5, expired.size());
+        assertTrue(expired.contains(mac(7)));
+        assertEquals(5, table.size());
+        assertEquals(5, table.expire(now + AGE + AGE / 2 + 2000).size());
+        assertEquals(0, table.size());
+        assertEquals(0, table.pendingTimers());
+    }
+
+    @Test
+    public void eviction() {
+        MacTable table = new MacTable(100, AGE, true);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 250; i++) {
+            table.learn(mac(i), PortNumber.portNumber(2), now + i * 100);
+        }
+        assertEquals(100, table.size());
+        assertTrue(table.evictions() > 0);
+        assertEquals(PortNumber.portNumber(2), table.lookup(mac(249), now + 249 * 100));
+        // evicted MACs are reported once, so their flows can be forgotten
+        List<MacAddress> dropped = table.expire(now + 249 * 100);
+        assertEquals(150, dropped.size());
+        assertNull(table.lookup(dropped.get(0), now + 249 * 100));
+        assertTrue(table.expire(now + 249 * 100).isEmpty());
+    }
+
+}
@@ -15,6 +15,9 @@
  */
 package nctu.st.testapp;
 
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -48,6 +51,7 @@ import org.onosproject.net.PortNumber;
 import org.onosproject.net.host.HostService;
 import org.onosproject.net.Link;
 
+import org.onosproject.net.topology.Topology;
 import org.onosproject.net.topology.TopologyService;
 import org.onosproject.net.topology.TopologyGraph;
 import org.onosproject.net.topology.TopologyVertex;
@@ -103,6 +107,7 @@ public class AppComponent {
 
     private ApplicationId appId;
     private ReactivePacketProcessor processor = new ReactivePacketProcessor();
+    private volatile TopologySnapshot snapshot;
 
 
     @Activate
@@ -128,6 +133,7 @@ public class AppComponent {
 
         packetService.removeProcessor(processor);
         processor = null;
+        snapshot = null;
         log.info("Stopped");
     }
 
@@ -170,58 +176,13 @@ public class AppComponent {
         MacAddress srcmac = ethPkt.getSourceMAC();
         MacAddress dstmac = ethPkt.getDestinationMAC();
 
-        //build graph
-        Map<DeviceId, List> myGraph = new ConcurrentHashMap();
-        TopologyGraph currentGraph = topologyService.getGraph(topologyService.currentTopology());
-        Set<TopologyVertex> vertexes = new HashSet<TopologyVertex>(currentGraph.getVertexes());
-        for(TopologyVertex i : vertexes){
-            //log.info("Device:  "+i.deviceId().toString());
-            List vtxlist = new LinkedList<Link>();
-            Set<TopologyEdge> to_edges = currentGraph.getEdgesFrom(i);
-            for(TopologyEdge j : to_edges){
-                vtxlist.add(j.link());
-            }
-            myGraph.put(i.deviceId(), vtxlist);
-        }
-
         //get source device
         Set<Host> findHosts = hostService.getHostsByMac(srcmac);
         Host firstHost = findHosts.iterator().next();
         DeviceId sourceDeviceId = firstHost.location().deviceId();
         
         //calculate path with Dijkstra's algorithm
-        Map<DeviceId, Integer> distance = new HashMap<DeviceId, Integer>();
-        Map<DeviceId, Link> parentLink = new HashMap<DeviceId, Link>();
-        for(TopologyVertex i : vertexes){
-            distance.put(i.deviceId(),Integer.MAX_VALUE);
-            parentLink.put(i.deviceId(),null);
-        }
-        distance.put(sourceDeviceId,0);
-
-        while(!vertexes.isEmpty()){
-            TopologyVertex minVertex = null;
-            Integer minDistance = Integer.MAX_VALUE;
-            
-            for(TopologyVertex i : vertexes){
-                if( distance.get(i.deviceId()) <= minDistance ){
-                    minVertex = i;
-                    minDistance = distance.get(i.deviceId());
-                }
-            }
-            //log.info( "Bag size:  "  + String.valueOf(vertexes.size()) );
-            //log.info( "MIN distance:  "  + minDistance.toString() );
-            //log.info( "MIN ID:  "  + minVertex.deviceId().toString() );
-
-            List<Link> to_edges = myGraph.get(minVertex.deviceId());
-            for(Link i : to_edges ){
-                if( minDistance.intValue()+1 < distance.get(i.dst().deviceId()).intValue() ){
-                    distance.put(i.dst().deviceId(), new Integer(minDistance.intValue()+1) );
-                    parentLink.put(i.dst().deviceId(),i);
-                }
-            }
-
-            vertexes.remove(minVertex);
-        }
+        PathEngine.Tree tree = new PathEngine(getSnapshot()).shortestPaths(sourceDeviceId);
 
         //find path
         findHosts = hostService.getHostsByMac(dstmac);
@@ -230,7 +191,7 @@ public class AppComponent {
         installRule(srcmac, dstmac, dstCP.port(), dstCP.deviceId());
         while(dstCP.deviceId() != sourceDeviceId){
             log.info( "Path:  "+dstCP.deviceId().toString() );
-            Link linkPath = parentLink.get(dstCP.deviceId());
+            Link linkPath = tree.parentLink(dstCP.deviceId());
             if(linkPath==null) break;
             installRule(srcmac, dstmac, linkPath.src().port(), linkPath.src().deviceId());
             dstCP = linkPath.src();
@@ -239,6 +200,20 @@ public class AppComponent {
     }
 
 
+    // CSR view of the current topology, rebuilt only when the topology changes
+    private TopologySnapshot getSnapshot(){
+        Topology topology = topologyService.currentTopology();
+        TopologySnapshot graph = snapshot;
+        if (graph == null || graph.topology() != topology) {
+            graph = TopologySnapshot.build(topology, topologyService.getGraph(topology));
+            snapshot = graph;
+            log.info("[TOPO] Snapshot: {} devices, {} links, {} bytes, built in {} us",
+                     graph.deviceCount(), graph.linkCount(), graph.estimatedBytes(),
+                     graph.buildNanos() / 1000);
+        }
+        return graph;
+    }
+
     // Sends flow modify to device
     private void installRule(MacAddress srcMac, MacAddress dstMac,
                              PortNumber outPort, DeviceId configDeviceId){
@@ -76,6 +76,7 @@ import org.onlab.packet.TpPort;
 import org.onlab.packet.UDP;
 import org.onlab.packet.IPv4;
 
+import java.nio.ByteBuffer;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
@@ -99,15 +100,17 @@ public class AppComponent {
     private ApplicationId appId;
     private final InternalConfigListener cfgListener = new InternalConfigListener();
     private ReactivePacketProcessor processor = new ReactivePacketProcessor();
+    private final PacketClassifier classifier = new PacketClassifier()
+        .on(PacketClassifier.Kind.CONTROL, context -> log.info("Get Control Packet!!"))
+        .on(PacketClassifier.Kind.DHCP_CLIENT, this::dhcpClient);
     
 
     private static final MacAddress BoardcastMac = MacAddress.valueOf("ff:ff:ff:ff:ff:ff");
-    private static final Ip4Address srcDHCPip = Ip4Address.valueOf("0.0.0.0");
-    private static final Ip4Address dstDHCPip = Ip4Address.valueOf("255.255.255.255");
+    private static final int srcDHCPip = Ip4Address.valueOf("0.0.0.0").toInt();
+    private static final int dstDHCPip = Ip4Address.valueOf("255.255.255.255").toInt();
     private static final int DEFAULT_TIMEOUT = 300;
     private static final int DEFAULT_PRIORITY = 4000;
-    private static String dhcpMac = "FF:FF:FF:FF:FF:FF";
-    private static String dhcpCPoint = "of:0000000000000000/0";
+    private volatile DhcpServer server;
 
     /** Config factory */
     private final Set<ConfigFactory> factories = ImmutableSet.of(
@@ -184,12 +187,12 @@ public class AppComponent {
             if (cfg == null) {
                 return;
             }
-            if (cfg.getCPoint() != null) {
-                dhcpCPoint = cfg.getCPoint();
-            }
-            if (cfg.getMAC() != null) {
-                dhcpMac = cfg.getMAC();
+            DhcpServer parsed = cfg.getServer();
+            if (parsed == null) {
+                log.info("Bad DHCP server in config: {} {}", cfg.getCPoint(), cfg.getMAC());
+                return;
             }
+            server = parsed;
         }
 
         @Override
@@ -203,7 +206,7 @@ public class AppComponent {
                                          = cfgService.getConfig(appId, nctu.st.testapp.MyConfig.class);
                 // handle config
                 reconfigureNetwork(cfg);
-                log.info("[Reconfigured] mac: {}, dhcpCPoint: {} ", dhcpMac, dhcpCPoint);
+                log.info("[Reconfigured] server: {} ", server);
             }
         }
 
@@ -220,29 +223,18 @@ public class AppComponent {
                 return;
             }
         
-            InboundPacket pkt = context.inPacket();
-            Ethernet ethPkt = pkt.parsed();
-
             // not ethernet packet
-            if (ethPkt == null) {
+            if (context.inPacket().parsed() == null) {
                 return;
             }
 
-            // Bail if this is deemed to be a control packet.
-            if (isControlPacket(ethPkt)) {
-                log.info("Get Control Packet!!");
+            // control and dhcp packets, classified from the raw frame
+            if (classifier.dispatch(context)) {
                 return;
-            }          
-
-            // check dhcp packet
-            if ( ethPkt.isBroadcast() ){
-                IPv4 ipv4IpPayload = (IPv4) ethPkt.getPayload();
-                Ip4Address ipSrcAddr = Ip4Address.valueOf(ipv4IpPayload.getSourceAddress());
-                Ip4Address ipDstAddr = Ip4Address.valueOf(ipv4IpPayload.getDestinationAddress());
-                if ( ipSrcAddr.equals(srcDHCPip) && ipDstAddr.equals(dstDHCPip) ){
-                    log.info("Get DHCP!!");
-                    dhcp_handler(context);
-                }
+            }
+
+            // other broadcasts are not ours
+            if ( PacketClassifier.isBroadcast(context.inPacket().unparsed()) ){
                 return;
             }
 
@@ -251,6 +243,20 @@ public class AppComponent {
         }
     }
 
+    /** dhcp broadcasts go to the server, renewals are plain unicast */
+    private void dhcpClient(PacketContext context){
+        ByteBuffer frame = context.inPacket().unparsed();
+        if ( !PacketClassifier.isBroadcast(frame) ){
+            log.info("Get packet!!");
+            handler(context);
+            return;
+        }
+        if ( PacketClassifier.ipv4Src(frame) == srcDHCPip && PacketClassifier.ipv4Dst(frame) == dstDHCPip ){
+            log.info("Get DHCP!!");
+            dhcp_handler(context);
+        }
+    }
+
 
     /** handle dhcp broadcast */
     private void dhcp_handler(PacketContext context){
@@ -258,7 +264,12 @@ public class AppComponent {
         ConnectPoint toHostCP = pkt.receivedFrom();
         Ethernet ethPkt = pkt.parsed();
         MacAddress srcmac = ethPkt.getSourceMAC();
-        MacAddress dstmac = MacAddress.valueOf(dhcpMac);
+        DhcpServer dhcp = server;
+        if( dhcp == null ){
+          log.info("no DHCP server configured");
+          return;
+        }
+        MacAddress dstmac = dhcp.mac();
         //log.info("path to DHCP: "+dstmac.toString());
         //log.info("From: "+toHostCP.deviceId().toString()+" "+toHostCP.port().toString());
 
@@ -319,14 +330,14 @@ public class AppComponent {
         }
 
         //find path
-	if( sourceDeviceId.equals(DeviceId.deviceId(dhcpCPoint.split("/")[0])) ){
-            installDHCPRule(srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), sourceDeviceId);
-            log.info("[Install] dhcp: {} {} {}", srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), sourceDeviceId );
+	if( sourceDeviceId.equals(dhcp.deviceId()) ){
+            installDHCPRule(srcmac, dhcp.port(), sourceDeviceId);
+            log.info("[Install] dhcp: {} {} {}", srcmac, dhcp.port(), sourceDeviceId );
         }else{
-          Link firstlink = parentLink.get(DeviceId.deviceId(dhcpCPoint.split("/")[0]));
+          Link firstlink = parentLink.get(dhcp.deviceId());
           ConnectPoint dstCP = firstlink.dst();
-          installDHCPRule(srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), dstCP.deviceId());
-          log.info("[Install] dhcp: {} {} {}", srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), dstCP.deviceId() );
+          installDHCPRule(srcmac, dhcp.port(), dstCP.deviceId());
+          log.info("[Install] dhcp: {} {} {}", srcmac, dhcp.port(), dstCP.deviceId() );
           while(dstCP.deviceId() != sourceDeviceId){
               Link linkPath = parentLink.get(dstCP.deviceId());
               if(linkPath==null) break;
@@ -353,11 +364,11 @@ public class AppComponent {
 
 
         //inverse
-        srcmac = MacAddress.valueOf(dhcpMac);
+        srcmac = dhcp.mac();
         dstmac = ethPkt.getSourceMAC();
 
         //get source device
-        sourceDeviceId = DeviceId.deviceId(dhcpCPoint.split("/")[0]);
+        sourceDeviceId = dhcp.deviceId();
         
         //calculate path with Dijkstra's algorithm
         distance = new HashMap<DeviceId, Integer>();
@@ -562,12 +573,6 @@ public class AppComponent {
             flowObjectiveService.forward(i.deviceId(),  forwardingObjective);
         }
     }
-
-    /** Indicates whether this is a control packet, e.g. LLDP, BDDP */
-    private boolean isControlPacket(Ethernet eth) {
-        short type = eth.getEtherType();
-        return type == Ethernet.TYPE_LLDP || type == Ethernet.TYPE_BSN;
-    }
 }
 
 
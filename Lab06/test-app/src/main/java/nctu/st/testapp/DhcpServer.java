@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+
+import java.util.Objects;
+
+/**
+ * DHCP server as read from the config, parsed once.
+ *
+ * Immutable, so the app publishes a new instance on every config update
+ * and the packet path reads one reference without any string parsing.
+ */
+public final class DhcpServer {
+
+    private final ConnectPoint connectPoint;
+    private final MacAddress mac;
+
+    public DhcpServer(ConnectPoint connectPoint, MacAddress mac){
+        this.connectPoint = Objects.requireNonNull(connectPoint, "connectPoint");
+        this.mac = Objects.requireNonNull(mac, "mac");
+    }
+
+    /**
+     * Parses "of:0000000000000001/3" and "00:00:00:00:00:01", throwing
+     * IllegalArgumentException if either is malformed.
+     */
+    public static DhcpServer parse(String connectPoint, String mac){
+        if (connectPoint == null || mac == null) {
+            throw new IllegalArgumentException("DHCP server needs a connect point and a MAC");
+        }
+        try {
+            return new DhcpServer(ConnectPoint.deviceConnectPoint(connectPoint),
+                                  MacAddress.valueOf(mac));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("bad DHCP server " + connectPoint + " " + mac, e);
+        }
+    }
+
+    public ConnectPoint connectPoint(){
+        return connectPoint;
+    }
+
+    public DeviceId deviceId(){
+        return connectPoint.deviceId();
+    }
+
+    public PortNumber port(){
+        return connectPoint.port();
+    }
+
+    public MacAddress mac(){
+        return mac;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if (!(o instanceof DhcpServer)) {
+            return false;
+        }
+        DhcpServer other = (DhcpServer) o;
+        return connectPoint.equals(other.connectPoint) && mac.equals(other.mac);
+    }
+
+    @Override
+    public int hashCode(){
+        return Objects.hash(connectPoint, mac);
+    }
+
+    @Override
+    public String toString(){
+        return mac + "@" + connectPoint;
+    }
+}
@@ -33,8 +33,7 @@ public class MyConfig extends Config<ApplicationId>{
     // For ONOS to check whether an uploaded configuration is valid.
     @Override
     public boolean isValid(){
-        boolean vmac = get(DHCP_MAC, null).matches("^([0-9A-Fa-f]{2}[:-]){5}([0-9A-Fa-f]{2})$");
-        return hasOnlyFields(MY_NAME, DHCP_MAC, DHCP_CPoint) & vmac;
+        return hasOnlyFields(MY_NAME, DHCP_MAC, DHCP_CPoint) && getServer() != null;
     }
 
     // To retreat the value.
@@ -55,6 +54,15 @@ public class MyConfig extends Config<ApplicationId>{
         return dhcpCP;
     }
 
+    // Typed server, null if a field is missing or malformed.
+    public DhcpServer getServer(){
+        try {
+            return DhcpServer.parse(getCPoint(), getMAC());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     // To set or clear the value.
     public BasicElementConfig myname(String name){
         return (BasicElementConfig) setOrClear(MY_NAME, name);
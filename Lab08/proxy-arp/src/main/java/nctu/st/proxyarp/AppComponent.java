@@ -15,6 +15,8 @@
  */
 package nctu.st.proxyarp;
 
+import nctu.st.common.PacketPipeline;
+
 import com.google.common.collect.ImmutableSet;
 
 import org.apache.felix.scr.annotations.Activate;
@@ -44,9 +46,15 @@ import org.onosproject.net.packet.InboundPacket;
 import org.onosproject.net.packet.DefaultOutboundPacket;
 
 import org.onosproject.net.host.HostService;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
 import org.onosproject.net.edge.EdgePortService;
+import org.onosproject.net.edge.EdgePortEvent;
+import org.onosproject.net.edge.EdgePortListener;
 import org.onosproject.net.Link;
 import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.driver.DriverService;
+import org.onosproject.net.meter.MeterService;
 import org.onosproject.net.Host;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
@@ -74,6 +82,7 @@ import org.onlab.packet.TpPort;
 import org.onlab.packet.UDP;
 import org.onlab.packet.MacAddress;
 import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
 
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -83,6 +92,12 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.groupedThreads;
 
 /**
  * Skeletal ONOS application component.
@@ -91,6 +106,32 @@ import java.util.concurrent.ConcurrentHashMap;
 public class AppComponent {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // packet-in work is handed to workers partitioned by (src mac, dst mac)
+    private static final int PIPELINE_WORKERS = 4;
+    private static final int PIPELINE_QUEUE_SIZE = 1024;
+    private static final PacketPipeline.Overflow PIPELINE_OVERFLOW = PacketPipeline.Overflow.DROP;
+    // bindings answered by the proxy, and how long one lives without being relearned
+    private static final int ARP_CACHE_SIZE = 65536;
+    private static final long ARP_TTL = 20 * 60 * 1000;
+    // answer requests for host bindings on the edge switches, above the app's REACTIVE
+    // packet-in request and below the CONTROL punt rules, so no two rules tie
+    private static final boolean ARP_OFFLOAD = true;
+    private static final int ARP_RESPONDER_PRIORITY = 39000;
+    // unanswered requests: one flood per (sender, target) per window, and per ingress port
+    // at most ARP_PORT_RATE floods per second with bursts of ARP_PORT_BURST
+    private static final long ARP_WINDOW = 1000;
+    private static final double ARP_PORT_RATE = 50;
+    private static final int ARP_PORT_BURST = 100;
+    // meter the ARP punt rule of every edge device at ARP_METER_RATE packets per second
+    private static final boolean ARP_METER = false;
+    private static final long ARP_METER_RATE = 1000;
+    private static final long ARP_METER_BURST = 2000;
+    private static final int ARP_METER_PRIORITY = 10;
+    // how long a flooded request waits for its reply
+    private static final long PENDING_TTL = 5000;
+    // seconds between packet-in rate reports
+    private static final int RATE_PERIOD = 10;
     
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected CoreService coreService;
@@ -113,17 +154,67 @@ public class AppComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected FlowObjectiveService flowObjectiveService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected DriverService driverService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected MeterService meterService;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected NetworkConfigRegistry cfgService;
 
     private ApplicationId appId;
     private ReactivePacketProcessor processor = new ReactivePacketProcessor();
-    private Map<Ip4Address, MacAddress> arpTable = new ConcurrentHashMap();
+    private PacketPipeline pipeline;
+    private final ArpCache arpTable = new ArpCache(ARP_CACHE_SIZE, ARP_TTL);
+    private final InternalHostListener hostListener = new InternalHostListener();
+    private ArpResponder responder;
+    private ArpPuntMeter puntMeter;
+    private final ArpRateLimiter limiter = new ArpRateLimiter(ARP_WINDOW, ARP_PORT_RATE, ARP_PORT_BURST);
+    private final PendingArpTable pending = new PendingArpTable(PENDING_TTL);
+    private ScheduledExecutorService rateReporter;
+    private final AtomicLong arpPacketIns = new AtomicLong();
+    private final EdgePortIndex edgePorts = new EdgePortIndex();
+    private final InternalEdgePortListener edgeListener = new InternalEdgePortListener();
 
 
     @Activate
     protected void activate() {
         appId = coreService.registerApplication("nctu.st.proxyarp");
+        if (ARP_OFFLOAD) {
+            responder = new ArpResponder(appId, flowObjectiveService, driverService,
+                                         ARP_RESPONDER_PRIORITY, log);
+        }
+        if (ARP_METER) {
+            puntMeter = new ArpPuntMeter(appId, meterService, flowObjectiveService,
+                                         ARP_METER_RATE, ARP_METER_BURST, ARP_METER_PRIORITY, log);
+        }
+        edgeService.addListener(edgeListener);
+        edgePorts.load(edgeService.getEdgePoints());
+        log.info("[EDGE] {} edge ports on {} devices",
+                 edgePorts.portCount(), edgePorts.devices().size());
+        for (DeviceId device : edgePorts.devices()) {
+            addEdgeDevice(device);
+        }
+
+        hostService.addListener(hostListener);
+        long now = System.currentTimeMillis();
+        for (Host host : hostService.getHosts()) {
+            learnHost(host, now);
+        }
+        log.info("[ARP] Cache seeded with {} bindings", arpTable.size());
+        if (responder != null) {
+            log.info("[ARP] Offloaded {} bindings to {} devices",
+                     responder.bindingCount(), responder.deviceCount());
+        }
+
+        rateReporter = Executors.newSingleThreadScheduledExecutor(groupedThreads("nctu/proxyarp", "arp-rate", log));
+        rateReporter.scheduleAtFixedRate(this::reportRate, RATE_PERIOD,
+                                         RATE_PERIOD, TimeUnit.SECONDS);
+
+        pipeline = new PacketPipeline("proxyarp", PIPELINE_WORKERS, PIPELINE_QUEUE_SIZE,
+                                      PIPELINE_OVERFLOW, (context, received) -> arpHandler(context), log);
+        pipeline.start();
 
         packetService.addProcessor(processor, PacketProcessor.director(2));
         TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
@@ -140,6 +231,31 @@ public class AppComponent {
         packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE, appId);
         packetService.removeProcessor(processor);
         processor = null;
+        pipeline.stop();
+        pipeline = null;
+        edgeService.removeListener(edgeListener);
+        edgePorts.clear();
+        hostService.removeListener(hostListener);
+        rateReporter.shutdownNow();
+        rateReporter = null;
+        if (responder != null) {
+            responder.clear();
+            responder = null;
+        }
+        if (puntMeter != null) {
+            puntMeter.clear();
+            puntMeter = null;
+        }
+        log.info("[ARP] Floods: {} emitted, {} duplicates, {} rate limited",
+                 limiter.emitted(), limiter.duplicates(), limiter.rateLimited());
+        limiter.clear();
+        log.info("[ARP] Replies: {} resolved, {} expired, latency p50/p99 {}/{} us",
+                 pending.resolved(), pending.expired(), pending.latency(0.5), pending.latency(0.99));
+        pending.clear();
+        log.info("[ARP] Cache: {} bindings, {} hits, {} misses, {} evicted, {} expired",
+                 arpTable.size(), arpTable.hits(), arpTable.misses(),
+                 arpTable.evictions(), arpTable.expirations());
+        arpTable.clear();
 
         log.info("Stopped");
     }
@@ -164,12 +280,14 @@ public class AppComponent {
             // ARP packet
             if(ethPkt.getEtherType() == ethPkt.TYPE_ARP) {
                 //log.info("[ARP] Packet in !!");
+                arpPacketIns.incrementAndGet();
                 ARP arpPayload = (ARP) ethPkt.getPayload();
                 byte[] senderMac = arpPayload.getSenderHardwareAddress();
                 byte[] senderIP = arpPayload.getSenderProtocolAddress();
-                arpTable.putIfAbsent( Ip4Address.valueOf(senderIP), 
-                                      MacAddress.valueOf(senderMac) );
-                arpHandler(context);
+                arpTable.update( Ip4Address.valueOf(senderIP),
+                                 MacAddress.valueOf(senderMac),
+                                 System.currentTimeMillis() );
+                pipeline.submit(context);
                 return;
             }
         }
@@ -186,18 +304,17 @@ public class AppComponent {
         if( arpPayload.getOpCode() == ARP.OP_REQUEST ){
             Ip4Address targetIP
                        = Ip4Address.valueOf(arpPayload.getTargetProtocolAddress());
-            MacAddress targetMac = arpTable.get( targetIP );
+            MacAddress targetMac = lookup( targetIP );
 
             if( targetMac == null ){
-                log.info("[ARP] REQUEST!!");
-                for ( ConnectPoint cp : edgeService.getEdgePoints() ){
-                    if( cp.deviceId().equals( srccp.deviceId() ) && 
-                        cp.port().equals( srccp.port() ) ){
-                            continue;
-                    }
-                    packetOut(cp.deviceId(), cp.port(),
-                              ByteBuffer.wrap(ethPkt.serialize()) );
+                ArpRateLimiter.Verdict verdict = limiter.check(
+                        ethPkt.getSourceMAC(), targetIP, srccp, System.currentTimeMillis());
+                if( verdict != ArpRateLimiter.Verdict.EMIT ){
+                    return;
                 }
+                log.info("[ARP] REQUEST!!");
+                pending.put(targetIP, ethPkt.getSourceMAC(), srccp, System.currentTimeMillis());
+                flood(srccp, ethPkt);
                 return;
             }else{
                 log.info( "[ARP] FIND in TABLE!!" );
@@ -212,6 +329,15 @@ public class AppComponent {
             log.info("[ARP] REPLY!!");
             MacAddress targetMac
                        = MacAddress.valueOf(arpPayload.getTargetHardwareAddress());
+            ConnectPoint requester = pending.resolve(
+                    Ip4Address.valueOf(arpPayload.getSenderProtocolAddress()),
+                    targetMac, System.currentTimeMillis());
+            if( requester != null ){
+                packetOut(requester.deviceId(), requester.port(),
+                          ByteBuffer.wrap(ethPkt.serialize()) );
+                return;
+            }
+            // reply to a request we did not flood
             Set<Host> findHosts = hostService.getHostsByMac(targetMac);
             if( findHosts.size()==0 ){
                 log.info( "[WARN] HostService not find {}", targetMac );
@@ -226,6 +352,154 @@ public class AppComponent {
     }
 
 
+    /** Sends the frame out of every edge port but the one it came from */
+    private void flood(ConnectPoint srccp, Ethernet ethPkt){
+        // one serialization shared by every device, one packet-out per device
+        byte[] frame = ethPkt.serialize();
+        for ( DeviceId device : edgePorts.devices() ){
+            PortNumber except = device.equals( srccp.deviceId() ) ? srccp.port() : null;
+            TrafficTreatment treatment = edgePorts.flood(device, except);
+            if( treatment == null ){
+                continue;
+            }
+            packetService.emit(new DefaultOutboundPacket(device, treatment,
+                                                         ByteBuffer.wrap(frame)));
+        }
+    }
+
+
+    /** Logs the ARP packet-in rate since the last report */
+    private void reportRate(){
+        long count = arpPacketIns.getAndSet(0);
+        if( count == 0 ){
+            return;
+        }
+        log.info("[ARP] {} packet-ins in {} s ({}/s), {} bindings offloaded, " +
+                 "{} floods emitted, {} suppressed",
+                 count, RATE_PERIOD, count / RATE_PERIOD,
+                 responder == null ? 0 : responder.bindingCount(),
+                 limiter.emitted(), limiter.suppressed());
+    }
+
+
+    private void addEdgeDevice(DeviceId device){
+        if( responder != null ){
+            responder.addDevice(device);
+        }
+        if( puntMeter != null ){
+            puntMeter.addDevice(device);
+        }
+    }
+
+
+    private void removeEdgeDevice(DeviceId device){
+        if( responder != null ){
+            responder.removeDevice(device);
+        }
+        if( puntMeter != null ){
+            puntMeter.removeDevice(device);
+        }
+    }
+
+
+    /** Cached binding of the address, falling back to HostService on a miss */
+    private MacAddress lookup(Ip4Address ip){
+        long now = System.currentTimeMillis();
+        MacAddress mac = arpTable.lookup(ip, now);
+        if( mac != null ){
+            return mac;
+        }
+        for ( Host host : hostService.getHostsByIp(ip) ){
+            arpTable.update(ip, host.mac(), now);
+            return host.mac();
+        }
+        return null;
+    }
+
+
+    private void learnHost(Host host, long now){
+        for ( IpAddress ip : host.ipAddresses() ){
+            if( ip.isIp4() ){
+                arpTable.update(ip.getIp4Address(), host.mac(), now);
+                if( responder != null ){
+                    responder.bind(ip.getIp4Address(), host.mac());
+                }
+            }
+        }
+    }
+
+
+    private void forgetHost(Host host){
+        for ( IpAddress ip : host.ipAddresses() ){
+            if( ip.isIp4() ){
+                forgetAddress(ip.getIp4Address(), host.mac());
+            }
+        }
+    }
+
+
+    // Unbinds only the addresses the host lost, the ones it kept stay bound
+    private void updateHost(Host prev, Host host, long now){
+        for ( IpAddress ip : prev.ipAddresses() ){
+            if( ip.isIp4() && (!host.mac().equals(prev.mac()) || !host.ipAddresses().contains(ip)) ){
+                forgetAddress(ip.getIp4Address(), prev.mac());
+            }
+        }
+        learnHost(host, now);
+    }
+
+
+    private void forgetAddress(Ip4Address ip, MacAddress mac){
+        arpTable.remove(ip, mac);
+        if( responder != null ){
+            responder.unbind(ip, mac);
+        }
+    }
+
+
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            long now = System.currentTimeMillis();
+            switch (event.type()) {
+                case HOST_ADDED:
+                case HOST_MOVED:
+                    learnHost(event.subject(), now);
+                    break;
+                case HOST_UPDATED:
+                    if (event.prevSubject() != null) {
+                        updateHost(event.prevSubject(), event.subject(), now);
+                    } else {
+                        learnHost(event.subject(), now);
+                    }
+                    break;
+                case HOST_REMOVED:
+                    forgetHost(event.subject());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+
+    private class InternalEdgePortListener implements EdgePortListener {
+        @Override
+        public void event(EdgePortEvent event) {
+            DeviceId device = event.subject().deviceId();
+            if (event.type() == EdgePortEvent.Type.EDGE_PORT_ADDED) {
+                edgePorts.add(event.subject());
+                addEdgeDevice(device);
+            } else if (event.type() == EdgePortEvent.Type.EDGE_PORT_REMOVED) {
+                edgePorts.remove(event.subject());
+                if (edgePorts.ports(device).isEmpty()) {
+                    removeEdgeDevice(device);
+                }
+            }
+        }
+    }
+
+
     private void packetOut(DeviceId device, PortNumber outPort, ByteBuffer data){
         TrafficTreatment treatment = DefaultTrafficTreatment.builder()
                                      .setOutput(outPort).build();
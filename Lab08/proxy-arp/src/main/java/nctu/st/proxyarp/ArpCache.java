@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.proxyarp;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * IP to MAC bindings answered by the proxy.
+ *
+ * Bounded and kept in least recently used order: when full, the oldest
+ * binding is evicted. A binding expires ttl milliseconds after it was last
+ * learned, and learning it again, with the same or a new MAC, refreshes it.
+ * Expired bindings are dropped when looked up or when they reach the head
+ * of the order, so a full cache never scans its bindings.
+ */
+public class ArpCache {
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final LinkedHashMap<Ip4Address, Entry> bindings;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    private static final class Entry {
+        private final MacAddress mac;
+        private final long expires;
+
+        private Entry(MacAddress mac, long expires){
+            this.mac = mac;
+            this.expires = expires;
+        }
+    }
+
+    public ArpCache(int capacity, long ttlMillis){
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.bindings = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** MAC bound to the address, null on a miss or if the binding expired. */
+    public synchronized MacAddress lookup(Ip4Address ip, long now){
+        Entry entry = bindings.get(ip);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expires <= now) {
+            bindings.remove(ip);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.mac;
+    }
+
+    /**
+     * Learns or refreshes a binding. Returns the MAC it replaced, null if
+     * the address was not bound or its binding had expired.
+     */
+    public synchronized MacAddress update(Ip4Address ip, MacAddress mac, long now){
+        Entry old = bindings.put(ip, new Entry(mac, now + ttlMillis));
+        if (old == null) {
+            evict(now);
+            return null;
+        }
+        return old.expires <= now ? null : old.mac;
+    }
+
+    /** Drops the binding if the address is still bound to the given MAC. */
+    public synchronized boolean remove(Ip4Address ip, MacAddress mac){
+        Entry entry = bindings.get(ip);
+        if (entry == null || !entry.mac.equals(mac)) {
+            return false;
+        }
+        bindings.remove(ip);
+        return true;
+    }
+
+    public synchronized int size(){
+        return bindings.size();
+    }
+
+    public synchronized void clear(){
+        bindings.clear();
+    }
+
+    public synchronized long hits(){
+        return hits;
+    }
+
+    public synchronized long misses(){
+        return misses;
+    }
+
+    public synchronized long evictions(){
+        return evictions;
+    }
+
+    public synchronized long expirations(){
+        return expirations;
+    }
+
+    // only looks at the head: expired bindings there go first, then the least recently used
+    private void evict(long now){
+        if (bindings.size() <= capacity) {
+            return;
+        }
+        Iterator<Entry> it = bindings.values().iterator();
+        while (it.hasNext()) {
+            Entry head = it.next();
+            if (head.expires <= now) {
+                it.remove();
+                expirations++;
+            } else {
+                if (bindings.size() > capacity) {
+                    it.remove();
+                    evictions++;
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.proxyarp;
+
+import com.google.common.collect.ImmutableList;
+
+import org.onlab.packet.Ethernet;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.meter.Band;
+import org.onosproject.net.meter.DefaultBand;
+import org.onosproject.net.meter.DefaultMeterRequest;
+import org.onosproject.net.meter.Meter;
+import org.onosproject.net.meter.MeterId;
+import org.onosproject.net.meter.MeterRequest;
+import org.onosproject.net.meter.MeterService;
+import org.slf4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rate limits the ARP packet-ins of a device in the switch.
+ *
+ * Each device gets a packet-per-second meter with a drop band and an ARP
+ * punt rule through the meter, just above the packet request of the app,
+ * so a storm is cut down before it reaches the control channel.
+ */
+public class ArpPuntMeter {
+
+    private final ApplicationId appId;
+    private final MeterService meterService;
+    private final FlowObjectiveService flowObjectiveService;
+    private final long rate;
+    private final long burst;
+    private final int priority;
+    private final Logger log;
+
+    private final Map<DeviceId, MeterId> meters = new HashMap<>();
+
+    public ArpPuntMeter(ApplicationId appId, MeterService meterService,
+                        FlowObjectiveService flowObjectiveService,
+                        long rate, long burst, int priority, Logger log){
+        this.appId = appId;
+        this.meterService = meterService;
+        this.flowObjectiveService = flowObjectiveService;
+        this.rate = rate;
+        this.burst = burst;
+        this.priority = priority;
+        this.log = log;
+    }
+
+    public synchronized void addDevice(DeviceId deviceId){
+        if (meters.containsKey(deviceId)) {
+            return;
+        }
+        Meter meter;
+        try {
+            meter = meterService.submit(request(deviceId).add());
+        } catch (RuntimeException e) {
+            log.info("[WARN] No ARP meter on {}: {}", deviceId, e.getMessage());
+            return;
+        }
+        meters.put(deviceId, meter.id());
+        flowObjectiveService.forward(deviceId, punt(meter.id()).add());
+    }
+
+    public synchronized void removeDevice(DeviceId deviceId){
+        MeterId meterId = meters.remove(deviceId);
+        if (meterId != null) {
+            flowObjectiveService.forward(deviceId, punt(meterId).remove());
+            meterService.withdraw(request(deviceId).remove(), meterId);
+        }
+    }
+
+    public synchronized void clear(){
+        for (DeviceId deviceId : meters.keySet().toArray(new DeviceId[0])) {
+            removeDevice(deviceId);
+        }
+    }
+
+    private MeterRequest.Builder request(DeviceId deviceId){
+        Band band = DefaultBand.builder()
+            .ofType(Band.Type.DROP)
+            .withRate(rate)
+            .burstSize(burst)
+            .build();
+        return DefaultMeterRequest.builder()
+            .forDevice(deviceId)
+            .fromApp(appId)
+            .withUnit(Meter.Unit.PKTS_PER_SEC)
+            .burst()
+            .withBands(ImmutableList.of(band));
+    }
+
+    private ForwardingObjective.Builder punt(MeterId meterId){
+        return DefaultForwardingObjective.builder()
+            .withSelector(DefaultTrafficSelector.builder()
+                          .matchEthType(Ethernet.TYPE_ARP)
+                          .build())
+            .withTreatment(DefaultTrafficTreatment.builder()
+                           .punt()
+                           .meter(meterId)
+                           .build())
+            .withPriority(priority)
+            .withFlag(ForwardingObjective.Flag.VERSATILE)
+            .fromApp(appId)
+            .makePermanent();
+    }
+}
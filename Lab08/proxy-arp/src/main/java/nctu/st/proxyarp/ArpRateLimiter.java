@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.proxyarp;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether an unanswered ARP request may be flooded.
+ *
+ * A request is dropped if the same sender asked for the same target less
+ * than a window ago, so retries for a dead address are flooded once per
+ * window. Requests left are then charged to a token bucket of their
+ * ingress port, which bounds what one scanning host can make the fabric
+ * carry.
+ */
+public class ArpRateLimiter {
+
+    /** Outcome of a check. */
+    public enum Verdict {
+        EMIT,
+        DUPLICATE,
+        RATE_LIMITED
+    }
+
+    private static final int PURGE_EVERY = 1024;
+
+    private final long windowMillis;
+    private final double tokensPerMilli;
+    private final double burst;
+
+    private final Map<Key, Long> lastFlood = new ConcurrentHashMap<>();
+    private final Map<ConnectPoint, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong emitted = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    private static final class Key {
+        private final long sender;
+        private final int target;
+
+        private Key(MacAddress sender, Ip4Address target){
+            this.sender = sender.toLong();
+            this.target = target.toInt();
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sender == other.sender && target == other.target;
+        }
+
+        @Override
+        public int hashCode(){
+            return Long.hashCode(sender * 31 + target);
+        }
+    }
+
+    private static final class Bucket {
+        private double tokens;
+        private long last;
+
+        private Bucket(double tokens, long now){
+            this.tokens = tokens;
+            this.last = now;
+        }
+    }
+
+    /**
+     * @param windowMillis time during which a repeated request is dropped
+     * @param ratePerSecond requests a port may have flooded per second
+     * @param burst requests a port may have flooded at once
+     */
+    public ArpRateLimiter(long windowMillis, double ratePerSecond, int burst){
+        this.windowMillis = windowMillis;
+        this.tokensPerMilli = ratePerSecond / 1000;
+        this.burst = burst;
+    }
+
+    public Verdict check(MacAddress sender, Ip4Address target, ConnectPoint ingress, long now){
+        Key key = new Key(sender, target);
+        Long last = lastFlood.get(key);
+        if (last != null && now - last < windowMillis) {
+            duplicates.incrementAndGet();
+            return Verdict.DUPLICATE;
+        }
+        if (!take(ingress, now)) {
+            rateLimited.incrementAndGet();
+            return Verdict.RATE_LIMITED;
+        }
+        lastFlood.put(key, now);
+        if (emitted.incrementAndGet() % PURGE_EVERY == 0) {
+            purge(now);
+        }
+        return Verdict.EMIT;
+    }
+
+    public long emitted(){
+        return emitted.get();
+    }
+
+    public long duplicates(){
+        return duplicates.get();
+    }
+
+    public long rateLimited(){
+        return rateLimited.get();
+    }
+
+    /** Requests dropped for either reason. */
+    public long suppressed(){
+        return duplicates.get() + rateLimited.get();
+    }
+
+    public void clear(){
+        lastFlood.clear();
+        buckets.clear();
+    }
+
+    private boolean take(ConnectPoint ingress, long now){
+        Bucket bucket = buckets.computeIfAbsent(ingress, k -> new Bucket(burst, now));
+        synchronized (bucket) {
+            if (now > bucket.last) {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.last) * tokensPerMilli);
+                bucket.last = now;
+            }
+            if (bucket.tokens < 1) {
+                return false;
+            }
+            bucket.tokens -= 1;
+            return true;
+        }
+    }
+
+    // windows that have passed and buckets that have refilled carry no state
+    private void purge(long now){
+        Iterator<Long> it = lastFlood.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() >= windowMillis) {
+                it.remove();
+            }
+        }
+        buckets.entrySet().removeIf(e -> {
+            Bucket bucket = e.getValue();
+            synchronized (bucket) {
+                return bucket.tokens + (now - bucket.last) * tokensPerMilli >= burst;
+            }
+        });
+    }
+}
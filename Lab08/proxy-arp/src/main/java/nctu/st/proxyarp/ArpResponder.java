@@ -0,0 +1,219 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.proxyarp;
+
+import org.onlab.packet.ARP;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.behaviour.ExtensionTreatmentResolver;
+import org.onosproject.net.driver.DriverHandler;
+import org.onosproject.net.driver.DriverService;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.instructions.ExtensionTreatmentType.ExtensionTreatmentTypes;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.slf4j.Logger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Answers ARP requests for known bindings on the edge switches.
+ *
+ * For every offloaded binding each edge device gets a rule matching ARP
+ * requests for the address. The rule turns the request into the reply in
+ * place, with the Nicira move actions swapping sender and target, and
+ * sends it back out of the port it came in on, so the request never
+ * reaches the controller. Devices whose driver has no Nicira extensions
+ * are skipped and keep sending their requests up.
+ *
+ * Gratuitous requests (sender and target address the same) and probes
+ * (sender 0.0.0.0) for the address are matched one priority higher and
+ * still sent to the controller, so a host that moves or changes its MAC
+ * is seen instead of being answered with the old binding.
+ */
+public class ArpResponder {
+
+    // sender address of an ARP probe
+    private static final Ip4Address UNSPECIFIED = Ip4Address.valueOf(0);
+
+    private final ApplicationId appId;
+    private final FlowObjectiveService flowObjectiveService;
+    private final DriverService driverService;
+    private final int priority;
+    private final Logger log;
+
+    private final Map<Ip4Address, MacAddress> bindings = new HashMap<>();
+    private final Set<DeviceId> devices = new HashSet<>();
+
+    public ArpResponder(ApplicationId appId, FlowObjectiveService flowObjectiveService,
+                        DriverService driverService, int priority, Logger log){
+        this.appId = appId;
+        this.flowObjectiveService = flowObjectiveService;
+        this.driverService = driverService;
+        this.priority = priority;
+        this.log = log;
+    }
+
+    /** Starts answering on the device, returns false if it cannot. */
+    public synchronized boolean addDevice(DeviceId deviceId){
+        if (devices.contains(deviceId)) {
+            return true;
+        }
+        if (resolver(deviceId) == null) {
+            return false;
+        }
+        devices.add(deviceId);
+        bindings.forEach((ip, mac) -> forward(deviceId, ip, mac, true));
+        return true;
+    }
+
+    public synchronized void removeDevice(DeviceId deviceId){
+        if (devices.remove(deviceId)) {
+            bindings.forEach((ip, mac) -> forward(deviceId, ip, mac, false));
+        }
+    }
+
+    /** Answers requests for the address with the MAC, replacing an older binding. */
+    public synchronized void bind(Ip4Address ip, MacAddress mac){
+        MacAddress old = bindings.put(ip, mac);
+        if (mac.equals(old)) {
+            return;
+        }
+        for (DeviceId deviceId : devices) {
+            if (old != null) {
+                forward(deviceId, ip, old, false);
+            }
+            forward(deviceId, ip, mac, true);
+        }
+    }
+
+    /** Stops answering for the address if it is still bound to the MAC. */
+    public synchronized void unbind(Ip4Address ip, MacAddress mac){
+        if (!bindings.remove(ip, mac)) {
+            return;
+        }
+        for (DeviceId deviceId : devices) {
+            forward(deviceId, ip, mac, false);
+        }
+    }
+
+    public synchronized int bindingCount(){
+        return bindings.size();
+    }
+
+    public synchronized int deviceCount(){
+        return devices.size();
+    }
+
+    /** Removes every rule. */
+    public synchronized void clear(){
+        for (DeviceId deviceId : devices) {
+            bindings.forEach((ip, mac) -> forward(deviceId, ip, mac, false));
+        }
+        devices.clear();
+        bindings.clear();
+    }
+
+    private ExtensionTreatmentResolver resolver(DeviceId deviceId){
+        try {
+            DriverHandler handler = driverService.createHandler(deviceId);
+            if (handler.hasBehaviour(ExtensionTreatmentResolver.class)) {
+                return handler.behaviour(ExtensionTreatmentResolver.class);
+            }
+        } catch (RuntimeException e) {
+            log.info("[WARN] No driver for {}: {}", deviceId, e.getMessage());
+        }
+        return null;
+    }
+
+    private void forward(DeviceId deviceId, Ip4Address ip, MacAddress mac, boolean add){
+        ExtensionTreatmentResolver resolver = resolver(deviceId);
+        if (resolver == null) {
+            return;
+        }
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+            .extension(resolver.getExtensionInstruction(
+                           ExtensionTreatmentTypes.NICIRA_MOV_ETH_SRC_TO_DST.type()), deviceId)
+            .setEthSrc(mac)
+            .setArpOp(ARP.OP_REPLY)
+            .extension(resolver.getExtensionInstruction(
+                           ExtensionTreatmentTypes.NICIRA_MOV_ARP_SHA_TO_THA.type()), deviceId)
+            .extension(resolver.getExtensionInstruction(
+                           ExtensionTreatmentTypes.NICIRA_MOV_ARP_SPA_TO_TPA.type()), deviceId)
+            .setArpSha(mac)
+            .setArpSpa(ip)
+            .setOutput(PortNumber.IN_PORT)
+            .build();
+
+        ForwardingObjective.Builder builder = DefaultForwardingObjective.builder()
+            .withSelector(DefaultTrafficSelector.builder()
+                          .matchEthType(Ethernet.TYPE_ARP)
+                          .matchArpOp(ARP.OP_REQUEST)
+                          .matchArpTpa(ip)
+                          .build())
+            .withTreatment(treatment)
+            .withPriority(priority)
+            .withFlag(ForwardingObjective.Flag.VERSATILE)
+            .fromApp(appId)
+            .makePermanent();
+
+        // the punt rules are in place whenever the responder is
+        if (!add) {
+            send(deviceId, builder, false);
+        }
+        send(deviceId, punt(ip, ip), add);
+        send(deviceId, punt(UNSPECIFIED, ip), add);
+        if (add) {
+            send(deviceId, builder, true);
+        }
+    }
+
+    // announcements and probes for the address keep going to the controller
+    private ForwardingObjective.Builder punt(Ip4Address spa, Ip4Address tpa){
+        return DefaultForwardingObjective.builder()
+            .withSelector(DefaultTrafficSelector.builder()
+                          .matchEthType(Ethernet.TYPE_ARP)
+                          .matchArpOp(ARP.OP_REQUEST)
+                          .matchArpSpa(spa)
+                          .matchArpTpa(tpa)
+                          .build())
+            .withTreatment(DefaultTrafficTreatment.builder()
+                           .setOutput(PortNumber.CONTROLLER)
+                           .build())
+            .withPriority(priority + 1)
+            .withFlag(ForwardingObjective.Flag.VERSATILE)
+            .fromApp(appId)
+            .makePermanent();
+    }
+
+    private void send(DeviceId deviceId, ForwardingObjective.Builder builder, boolean add){
+        if (add) {
+            flowObjectiveService.forward(deviceId, builder.add());
+        } else {
+            flowObjectiveService.forward(deviceId, builder.remove());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.proxyarp;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Edge ports grouped by device.
+ *
+ * Kept up to date from EdgePortEvents so a flood does not walk every edge
+ * point of the network. Each device also keeps a treatment with one output
+ * per edge port, so flooding a frame is one packet-out per device.
+ */
+public class EdgePortIndex {
+
+    private final Map<DeviceId, Ports> devices = new ConcurrentHashMap<>();
+
+    /** Immutable port list of a device and its flood treatment. */
+    private static final class Ports {
+        private final List<PortNumber> ports;
+        private final TrafficTreatment flood;
+
+        private Ports(List<PortNumber> ports){
+            this.ports = Collections.unmodifiableList(ports);
+            this.flood = treatment(ports, null);
+        }
+    }
+
+    /** Replaces the index with the given edge points. */
+    public synchronized void load(Iterable<ConnectPoint> edgePoints){
+        Map<DeviceId, List<PortNumber>> grouped = new HashMap<>();
+        for (ConnectPoint cp : edgePoints) {
+            grouped.computeIfAbsent(cp.deviceId(), k -> new ArrayList<>()).add(cp.port());
+        }
+        devices.clear();
+        grouped.forEach((deviceId, ports) -> devices.put(deviceId, new Ports(ports)));
+    }
+
+    public synchronized void add(ConnectPoint cp){
+        Ports old = devices.get(cp.deviceId());
+        List<PortNumber> ports = old == null ? new ArrayList<>() : new ArrayList<>(old.ports);
+        if (ports.contains(cp.port())) {
+            return;
+        }
+        ports.add(cp.port());
+        devices.put(cp.deviceId(), new Ports(ports));
+    }
+
+    public synchronized void remove(ConnectPoint cp){
+        Ports old = devices.get(cp.deviceId());
+        if (old == null || !old.ports.contains(cp.port())) {
+            return;
+        }
+        List<PortNumber> ports = new ArrayList<>(old.ports);
+        ports.remove(cp.port());
+        if (ports.isEmpty()) {
+            devices.remove(cp.deviceId());
+        } else {
+            devices.put(cp.deviceId(), new Ports(ports));
+        }
+    }
+
+    public synchronized void clear(){
+        devices.clear();
+    }
+
+    public Set<DeviceId> devices(){
+        return devices.keySet();
+    }
+
+    public List<PortNumber> ports(DeviceId deviceId){
+        Ports entry = devices.get(deviceId);
+        return entry == null ? Collections.emptyList() : entry.ports;
+    }
+
+    public int portCount(){
+        int n = 0;
+        for (Ports entry : devices.values()) {
+            n += entry.ports.size();
+        }
+        return n;
+    }
+
+    /**
+     * Treatment sending a frame out of every edge port of the device except
+     * the given one, null if no port is left.
+     */
+    public TrafficTreatment flood(DeviceId deviceId, PortNumber except){
+        Ports entry = devices.get(deviceId);
+        if (entry == null) {
+            return null;
+        }
+        if (except == null || !entry.ports.contains(except)) {
+            return entry.flood;
+        }
+        if (entry.ports.size() == 1) {
+            return null;
+        }
+        return treatment(entry.ports, except);
+    }
+
+    private static TrafficTreatment treatment(List<PortNumber> ports, PortNumber except){
+        TrafficTreatment.Builder builder = DefaultTrafficTreatment.builder();
+        for (PortNumber port : ports) {
+            if (!port.equals(except)) {
+                builder.setOutput(port);
+            }
+        }
+        return builder.build();
+    }
+}
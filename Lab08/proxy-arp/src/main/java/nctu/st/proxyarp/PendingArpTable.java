@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.proxyarp;
+
+import nctu.st.common.Histogram;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.ConnectPoint;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ARP requests flooded and not answered yet.
+ *
+ * Each request is recorded under (target IP, requester MAC) with the port
+ * it came in on. The reply carries the same pair as (sender IP, target
+ * MAC), so it is delivered with one lookup, and the time between flood and
+ * reply is the resolution latency.
+ */
+public class PendingArpTable {
+
+    private static final int PURGE_EVERY = 256;
+
+    private final long ttlMillis;
+    private final Map<Key, Entry> pending = new ConcurrentHashMap<>();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final Histogram latency = new Histogram();
+
+    private static final class Key {
+        private final int target;
+        private final long requester;
+
+        private Key(Ip4Address target, MacAddress requester){
+            this.target = target.toInt();
+            this.requester = requester.toLong();
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return target == other.target && requester == other.requester;
+        }
+
+        @Override
+        public int hashCode(){
+            return Long.hashCode(requester * 31 + target);
+        }
+    }
+
+    private static final class Entry {
+        private final ConnectPoint requester;
+        private final long requested;
+
+        private Entry(ConnectPoint requester, long requested){
+            this.requester = requester;
+            this.requested = requested;
+        }
+    }
+
+    public PendingArpTable(long ttlMillis){
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Records a flooded request; a retry restarts its clock. */
+    public void put(Ip4Address target, MacAddress requester, ConnectPoint cp, long now){
+        pending.put(new Key(target, requester), new Entry(cp, now));
+        if (puts.incrementAndGet() % PURGE_EVERY == 0) {
+            purge(now);
+        }
+    }
+
+    /**
+     * Removes the request answered by a reply and returns where the
+     * requester is, null if no live request matches.
+     */
+    public ConnectPoint resolve(Ip4Address sender, MacAddress target, long now){
+        Entry entry = pending.remove(new Key(sender, target));
+        if (entry == null) {
+            return null;
+        }
+        if (now - entry.requested >= ttlMillis) {
+            expired.incrementAndGet();
+            return null;
+        }
+        resolved.incrementAndGet();
+        latency.record((now - entry.requested) * 1000000);
+        return entry.requester;
+    }
+
+    public int size(){
+        return pending.size();
+    }
+
+    public long resolved(){
+        return resolved.get();
+    }
+
+    public long expired(){
+        return expired.get();
+    }
+
+    /** Resolution latency percentile, in microseconds. */
+    public long latency(double q){
+        return latency.percentile(q);
+    }
+
+    public void clear(){
+        pending.clear();
+    }
+
+    private void purge(long now){
+        Iterator<Entry> it = pending.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().requested >= ttlMillis) {
+                it.remove();
+                expired.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.proxyarp;
+
+import org.junit.Test;
+
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.MacAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the proxy ARP cache.
+ */
+public class ArpCacheTest {
+
+    private static final long TTL = 1000;
+
+    private static Ip4Address ip(int i){
+        return Ip4Address.valueOf(0x0a000000 + i);
+    }
+
+    private static MacAddress mac(long i){
+        return MacAddress.valueOf(0x020000000000L + i);
+    }
+
+    @Test
+    public void refreshAndExpire() {
+        ArpCache cache = new ArpCache(10, TTL);
+        assertNull(cache.update(ip(1), mac(1), 0));
+        assertEquals(mac(1), cache.lookup(ip(1), 500));
+
+        // a new MAC replaces the binding and restarts its lifetime
+        assertEquals(mac(1), cache.update(ip(1), mac(2), 900));
+        assertEquals(mac(2), cache.lookup(ip(1), 1500));
+        assertNull(cache.lookup(ip(1), 1900));
+        assertEquals(0, cache.size());
+
+        assertEquals(2, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.expirations());
+    }
+
+    @Test
+    public void leastRecentlyUsedEviction() {
+        ArpCache cache = new ArpCache(3, TTL);
+        cache.update(ip(1), mac(1), 0);
+        cache.update(ip(2), mac(2), 0);
+        cache.update(ip(3), mac(3), 0);
+        cache.lookup(ip(1), 10);
+        cache.update(ip(4), mac(4), 20);
+
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.lookup(ip(2), 30));
+        assertEquals(mac(1), cache.lookup(ip(1), 30));
+    }
+
+    @Test
+    public void expiredHeadGoesBeforeLiveBindings() {
+        ArpCache cache = new ArpCache(3, TTL);
+        cache.update(ip(1), mac(1), 0);
+        cache.update(ip(2), mac(2), 500);
+        cache.update(ip(3), mac(3), 600);
+        cache.update(ip(4), mac(4), 1200);
+
+        // ip(1) expired at the head, so no live binding was evicted
+        assertEquals(3, cache.size());
+        assertEquals(0, cache.evictions());
+        assertEquals(1, cache.expirations());
+        assertEquals(mac(2), cache.lookup(ip(2), 1300));
+    }
+
+    @Test
+    public void removeOnlyMatchingBinding() {
+        ArpCache cache = new ArpCache(10, TTL);
+        cache.update(ip(1), mac(2), 0);
+        assertFalse(cache.remove(ip(1), mac(1)));
+        assertTrue(cache.remove(ip(1), mac(2)));
+        assertNull(cache.lookup(ip(1), 0));
+    }
+}
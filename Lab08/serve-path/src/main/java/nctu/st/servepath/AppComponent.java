@@ -15,6 +15,10 @@
  */
 package nctu.st.servepath;
 
+import nctu.st.common.PacketPipeline;
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
 import com.google.common.collect.ImmutableSet;
 
 import org.apache.felix.scr.annotations.Activate;
@@ -62,6 +66,9 @@ import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
 import org.onosproject.net.topology.TopologyService;
 import org.onosproject.net.topology.TopologyGraph;
 import org.onosproject.net.topology.TopologyVertex;
@@ -92,6 +99,11 @@ import java.util.concurrent.ConcurrentHashMap;
 public class AppComponent {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // packet-in work is handed to workers partitioned by (src mac, dst mac)
+    private static final int PIPELINE_WORKERS = 4;
+    private static final int PIPELINE_QUEUE_SIZE = 1024;
+    private static final PacketPipeline.Overflow PIPELINE_OVERFLOW = PacketPipeline.Overflow.DROP;
     
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected CoreService coreService;
@@ -119,14 +131,44 @@ public class AppComponent {
 
     private ApplicationId appId;
     private ReactivePacketProcessor processor = new ReactivePacketProcessor();
+    private PacketPipeline pipeline;
+    private final InternalTopologyListener topologyListener = new InternalTopologyListener();
+    private final PathTreeCache pathCache = new PathTreeCache();
+    private volatile TopologySnapshot snapshot;
+    private final InFlightTable inFlight = new InFlightTable(IN_FLIGHT_TTL);
+    private PathProgrammer programmer;
 
 
     private static final int DEFAULT_TIMEOUT = 60;
     private static final int DEFAULT_PRIORITY = 4000;
+    // how long packet-ins of a flow are assumed to be waiting for its rules
+    private static final long IN_FLIGHT_TTL = 2000;
+    private volatile String firstPacket = MyConfig.EMIT_AT_EGRESS;
+
+    private final InternalConfigListener cfgListener = new InternalConfigListener();
+    private final Set<ConfigFactory> factories = ImmutableSet.of(
+        new ConfigFactory<ApplicationId, MyConfig>(
+            APP_SUBJECT_FACTORY, MyConfig.class, "myconfig"){
+                @Override
+                public MyConfig createConfig(){
+                    return new MyConfig();
+                }
+            }
+    );
 
     @Activate
     protected void activate() {
         appId = coreService.registerApplication("nctu.st.servepath");
+        programmer = new PathProgrammer(flowObjectiveService);
+        topologyService.addListener(topologyListener);
+
+        cfgService.addListener(cfgListener);
+        factories.forEach(cfgService::registerConfigFactory);
+        cfgListener.reconfigureNetwork(cfgService.getConfig(appId, MyConfig.class));
+
+        pipeline = new PacketPipeline("servepath", PIPELINE_WORKERS, PIPELINE_QUEUE_SIZE,
+                                      PIPELINE_OVERFLOW, (context, received) -> ipv4Handler(context), log);
+        pipeline.start();
 
         packetService.addProcessor(processor, PacketProcessor.director(2));
         TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
@@ -142,10 +184,51 @@ public class AppComponent {
         packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE, appId);
         packetService.removeProcessor(processor);
         processor = null;
+        pipeline.stop();
+        pipeline = null;
+
+        topologyService.removeListener(topologyListener);
+        cfgService.removeListener(cfgListener);
+        factories.forEach(cfgService::unregisterConfigFactory);
+        pathCache.clear();
+        inFlight.clear();
+        snapshot = null;
 
         log.info("Stopped");
     }
 
+    private class InternalConfigListener implements NetworkConfigListener {
+        @Override
+        public void event(NetworkConfigEvent event) {
+            if ((event.type() == NetworkConfigEvent.Type.CONFIG_ADDED ||
+                 event.type() == NetworkConfigEvent.Type.CONFIG_UPDATED) &&
+                 event.configClass().equals(MyConfig.class)) {
+                    MyConfig cfg = cfgService.getConfig(appId, MyConfig.class);
+                    reconfigureNetwork(cfg);
+                    log.info("[Reconfigured] firstPacket: {} ", firstPacket);
+                 }
+        }
+
+        // update the variable
+        private void reconfigureNetwork(MyConfig cfg) {
+            if (cfg == null) {
+                return;
+            }
+            if (cfg.getFirstPacket() != null) {
+                firstPacket = cfg.getFirstPacket();
+            }
+        }
+    }
+
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            // drop only the trees the changed links can affect
+            pathCache.update(event.subject(), event.reasons());
+            inFlight.clear();
+        }
+    }
+
     private class ReactivePacketProcessor implements PacketProcessor {
         @Override
         public void process(PacketContext context) {
@@ -163,7 +246,7 @@ public class AppComponent {
             }
 
             // IPV4 packet
-            ipv4Handler(context);
+            pipeline.submit(context);
         }
     }
 
@@ -172,9 +255,18 @@ public class AppComponent {
         Ethernet ethPkt = pkt.parsed();
         MacAddress srcmac = ethPkt.getSourceMAC();
         MacAddress dstmac = ethPkt.getDestinationMAC();
+        ConnectPoint inCP = pkt.receivedFrom();
+        long now = System.currentTimeMillis();
+
+        //rules of this flow are already on their way
+        PortNumber hop = inFlight.hop(srcmac, dstmac, inCP.deviceId(), now);
+        if( hop != null ){
+            packetOut(inCP.deviceId(), hop, pkt.unparsed());
+            log.info("[IPV4] In flight: {} {} {} {}, {} suppressed",
+                     srcmac, dstmac, hop, inCP.deviceId(), inFlight.suppressed());
+            return;
+        }
 
-        Map<DeviceId, List> myGraph = getGraph();
-        
         //get source device
         Set<Host> findHosts = hostService.getHostsByMac(srcmac);
         if( findHosts.size()==0 ){
@@ -184,7 +276,9 @@ public class AppComponent {
         Host firstHost = findHosts.iterator().next();
         DeviceId sourceDeviceId = firstHost.location().deviceId();
 
-        Map<DeviceId, Link> parentLink = getAllPath(myGraph, sourceDeviceId);
+        PathEngine.Tree tree = getPathTree(sourceDeviceId);
+        Map<DeviceId, PortNumber> hops = new HashMap<DeviceId, PortNumber>();
+        PathProgrammer.Batch batch = programmer.batch();
 
         //find path
         findHosts = hostService.getHostsByMac(dstmac);
@@ -194,71 +288,80 @@ public class AppComponent {
         }
         firstHost = findHosts.iterator().next();
         ConnectPoint dstCP = firstHost.location();
-        installRule(srcmac, dstmac, dstCP.port(), dstCP.deviceId());
+        batch.add(dstCP.deviceId(), pathRule(srcmac, dstmac, dstCP.port()));
+        hops.put(dstCP.deviceId(), dstCP.port());
         log.info("[IPV4] Install: {} {} {}", srcmac, dstmac, dstCP.port(), dstCP.deviceId() );
         while(dstCP.deviceId() != sourceDeviceId){
             //log.info( "Path:  "+dstCP.deviceId().toString() );
-            Link linkPath = parentLink.get(dstCP.deviceId());
+            Link linkPath = tree.parentLink(dstCP.deviceId());
             if(linkPath==null) break;
-            installRule(srcmac, dstmac, linkPath.src().port(), linkPath.src().deviceId());
+            batch.add(linkPath.src().deviceId(), pathRule(srcmac, dstmac, linkPath.src().port()));
+            hops.put(linkPath.src().deviceId(), linkPath.src().port());
             log.info("[IPV4] Install: {} {} {}", srcmac, dstmac, linkPath.src().port(), linkPath.src().deviceId() );
             dstCP = linkPath.src();
         }
+        inFlight.put(srcmac, dstmac, hops, now);
+
+        //deliver the packet that asked for the path
+        ConnectPoint egress = firstHost.location();
+        boolean afterAck = MyConfig.EMIT_AFTER_ACK.equals(firstPacket);
+        if( !afterAck ){
+            packetOut(egress.deviceId(), egress.port(), pkt.unparsed());
+        }
+        batch.submit().whenComplete((nanos, error) -> {
+            if (error != null) {
+                log.info("[WARN] Path {} {} failed: {}", srcmac, dstmac, error.getMessage());
+                if (afterAck) {
+                    packetOut(egress.deviceId(), egress.port(), pkt.unparsed());
+                }
+            } else {
+                log.info("[IPV4] Path {} {} set up on {} devices in {} us",
+                         srcmac, dstmac, hops.size(), nanos / 1000);
+                if (afterAck) {
+                    // resubmit at ingress so the packet walks the new rules
+                    packetOut(inCP.deviceId(), PortNumber.TABLE, pkt.unparsed());
+                }
+            }
+        });
 
     }
 
-    private Map<DeviceId, List> getGraph(){
-        Map<DeviceId, List> myGraph = new HashMap();
-        TopologyGraph currentGraph = topologyService.getGraph(topologyService.currentTopology());
-        Set<TopologyVertex> vertexes = new HashSet<TopologyVertex>(currentGraph.getVertexes());
-        for(TopologyVertex i : vertexes){
-            //log.info("Device:  "+i.deviceId().toString());
-            List vtxlist = new LinkedList<Link>();
-            Set<TopologyEdge> to_edges = currentGraph.getEdgesFrom(i);
-            for(TopologyEdge j : to_edges){
-                vtxlist.add(j.link());
-            }
-            myGraph.put(i.deviceId(), vtxlist);
-        }
-        return myGraph;
+    /** Sends the packet out of a device port */
+    private void packetOut(DeviceId device, PortNumber outPort, ByteBuffer data){
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                    .setOutput(outPort)
+                    .build();
+        packetService.emit(new DefaultOutboundPacket(device, treatment, data));
     }
 
-    private Map<DeviceId, Link> getAllPath(Map<DeviceId, List> myGraph, DeviceId sourceDeviceId){
-        Map<DeviceId, Integer> distance = new HashMap<DeviceId, Integer>();  //dist
-        Map<DeviceId, Link> parentLink = new HashMap<DeviceId, Link>();      //parent
-        Set<DeviceId> vertexes = myGraph.keySet();
-        for(DeviceId i : vertexes){
-            distance.put(i,Integer.MAX_VALUE);
-            parentLink.put(i,null);
+    // Shortest path tree of the source, computed only on a cache miss
+    private PathEngine.Tree getPathTree(DeviceId sourceDeviceId){
+        TopologySnapshot graph = getSnapshot();
+        PathEngine.Tree tree = pathCache.get(graph.topology(), sourceDeviceId);
+        if (tree == null) {
+            tree = new PathEngine(graph).shortestPaths(sourceDeviceId);
+            pathCache.put(graph.topology(), sourceDeviceId, tree);
         }
-        distance.put(sourceDeviceId,0);
-
-        while(!vertexes.isEmpty()){
-            DeviceId minVertex = null;
-            Integer minDistance = Integer.MAX_VALUE;
-            for(DeviceId i : vertexes){
-                if( distance.get(i) <= minDistance ){
-                    minVertex = i;
-                    minDistance = distance.get(i);
-                }
-            }
+        return tree;
+    }
 
-            List<Link> to_edges = myGraph.get(minVertex);
-            for(Link i : to_edges ){
-                if( minDistance.intValue()+1 < distance.get(i.dst().deviceId()).intValue() ){
-                    distance.put(i.dst().deviceId(), new Integer(minDistance.intValue()+1) );
-                    parentLink.put(i.dst().deviceId(),i);
-                }
-            }
-            vertexes.remove(minVertex);
+    // CSR view of the current topology, rebuilt only when the topology changes
+    private TopologySnapshot getSnapshot(){
+        Topology topology = topologyService.currentTopology();
+        TopologySnapshot graph = snapshot;
+        if (graph == null || graph.topology() != topology) {
+            graph = TopologySnapshot.build(topology, topologyService.getGraph(topology));
+            snapshot = graph;
+            log.info("[TOPO] Snapshot: {} devices, {} links, {} bytes, built in {} us",
+                     graph.deviceCount(), graph.linkCount(), graph.estimatedBytes(),
+                     graph.buildNanos() / 1000);
         }
-
-        return parentLink;
+        return graph;
     }
 
-    /** Sends flow modify to device */
-    private void installRule(MacAddress srcMac, MacAddress dstMac,
-                             PortNumber outPort, DeviceId configDeviceId){
+    /** Flow modify of one hop, submitted with the rest of its path */
+    private ForwardingObjective.Builder pathRule(MacAddress srcMac, MacAddress dstMac,
+                                                 PortNumber outPort){
         TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
 
         selectorBuilder.matchEthSrc(srcMac)
@@ -268,16 +371,13 @@ public class AppComponent {
                     .setOutput(outPort)
                     .build();
 
-        ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
+        return DefaultForwardingObjective.builder()
                     .withSelector(selectorBuilder.build())
                     .withTreatment(treatment)
                     .withPriority(DEFAULT_PRIORITY)
                     .withFlag(ForwardingObjective.Flag.VERSATILE)
                     .fromApp(appId)
-                    .makeTemporary(DEFAULT_TIMEOUT)
-                    .add();
-
-        flowObjectiveService.forward(configDeviceId,  forwardingObjective);
+                    .makeTemporary(DEFAULT_TIMEOUT);
     }
 
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.servepath;
+
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flows whose rules were just sent to the devices.
+ *
+ * Until the rules land, every packet of the flow still comes to the
+ * controller. While an entry is live those packets are sent out of the
+ * hop already chosen for their device instead of computing the path and
+ * submitting the same objectives again.
+ */
+public class InFlightTable {
+
+    private static final int PURGE_EVERY = 256;
+
+    private final long ttlMillis;
+    private final Map<Key, Entry> flows = new ConcurrentHashMap<>();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private static final class Key {
+        private final long src;
+        private final long dst;
+
+        private Key(MacAddress src, MacAddress dst){
+            this.src = src.toLong();
+            this.dst = dst.toLong();
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return src == other.src && dst == other.dst;
+        }
+
+        @Override
+        public int hashCode(){
+            return Long.hashCode(src * 31 + dst);
+        }
+    }
+
+    private static final class Entry {
+        private final Map<DeviceId, PortNumber> hops;
+        private final long expires;
+
+        private Entry(Map<DeviceId, PortNumber> hops, long expires){
+            this.hops = hops;
+            this.expires = expires;
+        }
+    }
+
+    public InFlightTable(long ttlMillis){
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Records the output port programmed on every device of the flow's path. */
+    public void put(MacAddress src, MacAddress dst, Map<DeviceId, PortNumber> hops, long now){
+        flows.put(new Key(src, dst), new Entry(hops, now + ttlMillis));
+        if (puts.incrementAndGet() % PURGE_EVERY == 0) {
+            purge(now);
+        }
+    }
+
+    /**
+     * Output port of the in-flight flow on the device, null if the flow is
+     * not being programmed or does not cross the device.
+     */
+    public PortNumber hop(MacAddress src, MacAddress dst, DeviceId deviceId, long now){
+        Key key = new Key(src, dst);
+        Entry entry = flows.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= now) {
+            flows.remove(key, entry);
+            return null;
+        }
+        PortNumber port = entry.hops.get(deviceId);
+        if (port != null) {
+            suppressed.incrementAndGet();
+        }
+        return port;
+    }
+
+    /** Packet-ins answered from the table instead of a new computation. */
+    public long suppressed(){
+        return suppressed.get();
+    }
+
+    public int size(){
+        return flows.size();
+    }
+
+    public void clear(){
+        flows.clear();
+    }
+
+    private void purge(long now){
+        Iterator<Entry> it = flows.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.servepath;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.config.Config;
+import org.onosproject.net.config.basics.BasicElementConfig;
+
+
+/**
+ * My Config class.
+ */
+public class MyConfig extends Config<ApplicationId>{
+
+    // The JSON file should contain one field "name".
+    public static final String MY_NAME = "name";
+    public static final String FIRST_PACKET = "firstPacket";
+
+    // How the packet that triggered a path is delivered.
+    public static final String EMIT_AT_EGRESS = "egress";
+    public static final String EMIT_AFTER_ACK = "ack";
+
+    // For ONOS to check whether an uploaded configuration is valid.
+    @Override
+    public boolean isValid(){
+        String mode = get(FIRST_PACKET, EMIT_AT_EGRESS);
+        boolean vmode = mode.equals(EMIT_AT_EGRESS) || mode.equals(EMIT_AFTER_ACK);
+        return hasOnlyFields(MY_NAME, FIRST_PACKET) & vmode;
+    }
+
+    // To retreat the value.
+    public String myname(){
+        String name = get(MY_NAME, null);
+        return name;
+    }
+
+    // To retreat the value.
+    public String getFirstPacket(){
+        String mode = get(FIRST_PACKET, null);
+        return mode;
+    }
+
+    // To set or clear the value.
+    public BasicElementConfig myname(String name){
+        return (BasicElementConfig) setOrClear(MY_NAME, name);
+    }
+}
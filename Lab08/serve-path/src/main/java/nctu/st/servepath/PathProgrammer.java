@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.servepath;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flowobjective.FlowObjectiveService;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveContext;
+import org.onosproject.net.flowobjective.ObjectiveError;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Programs the forwarding objectives of a path, or of any set of paths, as
+ * one unit.
+ *
+ * Objectives are collected per device and submitted device by device. Each
+ * one carries a shared ObjectiveContext, and the future returned by submit
+ * completes once every device has acknowledged its objectives, with the
+ * nanoseconds taken from submission to the last acknowledgement.
+ */
+public class PathProgrammer {
+
+    private final FlowObjectiveService flowObjectiveService;
+
+    public PathProgrammer(FlowObjectiveService flowObjectiveService){
+        this.flowObjectiveService = flowObjectiveService;
+    }
+
+    /** Starts collecting the objectives of a new path. */
+    public Batch batch(){
+        return new Batch();
+    }
+
+    /** Objectives of one path, grouped per device. */
+    public class Batch {
+        private final Map<DeviceId, List<ForwardingObjective.Builder>> adds = new LinkedHashMap<>();
+        private final Map<DeviceId, List<ForwardingObjective.Builder>> removes = new LinkedHashMap<>();
+        private int size;
+
+        private Batch(){
+        }
+
+        /** Adds a builder to be installed; do not call add() on it. */
+        public Batch add(DeviceId deviceId, ForwardingObjective.Builder builder){
+            adds.computeIfAbsent(deviceId, k -> new ArrayList<>()).add(builder);
+            size++;
+            return this;
+        }
+
+        /** Adds a builder to be removed; do not call remove() on it. */
+        public Batch remove(DeviceId deviceId, ForwardingObjective.Builder builder){
+            removes.computeIfAbsent(deviceId, k -> new ArrayList<>()).add(builder);
+            size++;
+            return this;
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public int deviceCount(){
+            int n = adds.size();
+            for (DeviceId deviceId : removes.keySet()) {
+                if (!adds.containsKey(deviceId)) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Submits every objective. The future fails with the first error
+         * reported by a device.
+         */
+        public CompletableFuture<Long> submit(){
+            CompletableFuture<Long> done = new CompletableFuture<>();
+            if (size == 0) {
+                done.complete(0L);
+                return done;
+            }
+            long start = System.nanoTime();
+            AtomicInteger pending = new AtomicInteger(size);
+            ObjectiveContext context = new ObjectiveContext() {
+                @Override
+                public void onSuccess(Objective objective){
+                    if (pending.decrementAndGet() == 0) {
+                        done.complete(System.nanoTime() - start);
+                    }
+                }
+
+                @Override
+                public void onError(Objective objective, ObjectiveError error){
+                    done.completeExceptionally(new IllegalStateException(
+                            "objective " + objective.id() + " failed: " + error));
+                }
+            };
+
+            // removals of the batch go out before its additions
+            for (Map.Entry<DeviceId, List<ForwardingObjective.Builder>> device : removes.entrySet()) {
+                for (ForwardingObjective.Builder builder : device.getValue()) {
+                    flowObjectiveService.forward(device.getKey(), builder.remove(context));
+                }
+            }
+            for (Map.Entry<DeviceId, List<ForwardingObjective.Builder>> device : adds.entrySet()) {
+                for (ForwardingObjective.Builder builder : device.getValue()) {
+                    flowObjectiveService.forward(device.getKey(), builder.add(context));
+                }
+            }
+            return done;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.servepath;
+
+import nctu.st.common.PathEngine;
+
+import org.onosproject.event.Event;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.topology.Topology;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shortest path trees cached per source device.
+ *
+ * A tree is served while it is stamped with the current topology. Link
+ * events move the stamp forward for trees they cannot affect and drop the
+ * others, so only the sources that really changed pay for a new Dijkstra.
+ * Only trees stamped with the topology the previous update moved to are
+ * checked against the events; older ones missed events and are dropped.
+ */
+public class PathTreeCache {
+
+    private final Map<DeviceId, Entry> trees = new ConcurrentHashMap<>();
+    // topology of the last update, null before the first one
+    private Topology last;
+
+    // a tree and the topology it is known to be valid for
+    private static class Entry {
+        private final PathEngine.Tree tree;
+        private volatile Topology topology;
+
+        Entry(PathEngine.Tree tree, Topology topology){
+            this.tree = tree;
+            this.topology = topology;
+        }
+
+        // the tree loses a parent link
+        private boolean uses(Link link){
+            Link parent = tree.parentLink(link.dst().deviceId());
+            return parent != null && parent.src().equals(link.src()) &&
+                   parent.dst().equals(link.dst());
+        }
+
+        // the new link shortens the way to its destination
+        private boolean improvedBy(Link link){
+            int srcDist = tree.distance(link.src().deviceId());
+            return srcDist != Integer.MAX_VALUE &&
+                   srcDist + 1 < tree.distance(link.dst().deviceId());
+        }
+    }
+
+    /** Returns the tree of the source if it was computed for this topology. */
+    public PathEngine.Tree get(Topology topology, DeviceId source){
+        Entry entry = trees.get(source);
+        if (entry == null || entry.topology != topology) {
+            return null;
+        }
+        return entry.tree;
+    }
+
+    /** Stores a tree computed on the given topology. */
+    public void put(Topology topology, DeviceId source, PathEngine.Tree tree){
+        trees.put(source, new Entry(tree, topology));
+    }
+
+    public synchronized void clear(){
+        trees.clear();
+        last = null;
+    }
+
+    public int size(){
+        return trees.size();
+    }
+
+    /**
+     * Repairs the cache for a new topology from the events that produced it.
+     * Anything other than a link event drops every tree.
+     */
+    public synchronized void update(Topology topology, List<Event> reasons){
+        Topology previous = last;
+        last = topology;
+        if (previous == null || reasons == null || reasons.isEmpty()) {
+            trees.clear();
+            return;
+        }
+        for (Event reason : reasons) {
+            if (!(reason instanceof LinkEvent)) {
+                trees.clear();
+                return;
+            }
+        }
+
+        List<Entry> checked = new ArrayList<>();
+        Iterator<Entry> it = trees.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.topology == topology) {
+                continue;
+            }
+            // trees of older topologies never saw the events in between
+            if (entry.topology != previous || affected(entry, reasons)) {
+                it.remove();
+            } else {
+                checked.add(entry);
+            }
+        }
+
+        // whatever passed is still a shortest path tree of the new topology
+        for (Entry entry : checked) {
+            entry.topology = topology;
+        }
+    }
+
+    private static boolean affected(Entry entry, List<Event> reasons){
+        for (Event reason : reasons) {
+            LinkEvent linkEvent = (LinkEvent) reason;
+            Link link = linkEvent.subject();
+            if (linkEvent.type() == LinkEvent.Type.LINK_REMOVED && entry.uses(link)) {
+                return true;
+            }
+            if (linkEvent.type() == LinkEvent.Type.LINK_ADDED && entry.improvedBy(link)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
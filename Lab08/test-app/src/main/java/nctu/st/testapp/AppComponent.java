@@ -15,6 +15,9 @@
  */
 package nctu.st.testapp;
 
+import nctu.st.common.PacketPipeline;
+import nctu.st.common.TopologySnapshot;
+
 import com.google.common.collect.ImmutableSet;
 
 import org.apache.felix.scr.annotations.Activate;
@@ -54,12 +57,19 @@ import org.onosproject.net.HostId;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.Port;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.host.HostService;
 import org.onosproject.net.Link;
 import org.onosproject.net.DeviceId;
 
 import org.onosproject.net.host.HostService;
 
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
 import org.onosproject.net.topology.TopologyService;
 import org.onosproject.net.topology.TopologyGraph;
 import org.onosproject.net.topology.TopologyVertex;
@@ -69,10 +79,13 @@ import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.DefaultFlowRule;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.instructions.Instruction;
 
+import org.onosproject.net.group.Group;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.group.DefaultGroupBucket;
 import org.onosproject.net.group.GroupBucket;
@@ -93,14 +106,20 @@ import org.onlab.packet.VlanId;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.lang.Integer;
 
+import static org.onlab.util.Tools.groupedThreads;
+
 import nctu.st.testapp.MyConfig;
 
 /**
@@ -111,6 +130,11 @@ public class AppComponent {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    // packet-in work is handed to workers partitioned by (src mac, dst mac)
+    private static final int PIPELINE_WORKERS = 4;
+    private static final int PIPELINE_QUEUE_SIZE = 1024;
+    private static final PacketPipeline.Overflow PIPELINE_OVERFLOW = PacketPipeline.Overflow.DROP;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected CoreService coreService;
 
@@ -123,25 +147,43 @@ public class AppComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected TopologyService topologyService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected DeviceService deviceService;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected GroupService groupService;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected FlowObjectiveService flowObjectiveService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected FlowRuleService flowRuleService;
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected NetworkConfigRegistry cfgService;
 
     private ApplicationId appId;
     private final InternalConfigListener cfgListener = new InternalConfigListener();
+    private final InternalTopologyListener topologyListener = new InternalTopologyListener();
+    private final InternalDeviceListener deviceListener = new InternalDeviceListener();
 
     private static final int DEFAULT_TIMEOUT = 300;
     private static final int DEFAULT_PRIORITY = 4001;
+    // segment rules are permanent, the devices are checked against the plan this often
+    private static final int RECONCILE_PERIOD = 30;
     Map<IpPrefix, DeviceId> edgeSubnetIP;
     Map<DeviceId, Short> segmentDeviceId;
 
 
     private ReactivePacketProcessor processor = new ReactivePacketProcessor();
+    private PacketPipeline pipeline;
+    private volatile TopologySnapshot snapshot;
+    private PathProgrammer programmer;
+    private SegmentPlan plan;
+    private long segmentObjectives;
+    private ScheduledExecutorService reconciler;
+    private long reconciled;
+    private long divergences;
 
     /** Config factory */
     private final Set<ConfigFactory> factories = ImmutableSet.of(
@@ -157,10 +199,20 @@ public class AppComponent {
     @Activate
     protected void activate() {
         appId = coreService.registerApplication("nctu.st.testapp");
+        programmer = new PathProgrammer(flowObjectiveService);
 
         cfgService.addListener(cfgListener);
         factories.forEach(cfgService::registerConfigFactory);
         cfgListener.reconfigureNetwork(cfgService.getConfig(appId, MyConfig.class));
+        topologyService.addListener(topologyListener);
+        deviceService.addListener(deviceListener);
+        reconciler = Executors.newSingleThreadScheduledExecutor(groupedThreads("nctu/testapp", "segment-reconcile", log));
+        reconciler.scheduleAtFixedRate(this::reconcileSafely, RECONCILE_PERIOD,
+                                       RECONCILE_PERIOD, TimeUnit.SECONDS);
+
+        pipeline = new PacketPipeline("testapp", PIPELINE_WORKERS, PIPELINE_QUEUE_SIZE,
+                                      PIPELINE_OVERFLOW, (context, received) -> handler(context), log);
+        pipeline.start();
 
         packetService.addProcessor(processor, PacketProcessor.director(2));
         TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
@@ -178,9 +230,17 @@ public class AppComponent {
         packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE, appId);
         packetService.removeProcessor(processor);
         processor = null;
+        pipeline.stop();
+        pipeline = null;
 
         cfgService.removeListener(cfgListener);
         factories.forEach(cfgService::unregisterConfigFactory);
+        topologyService.removeListener(topologyListener);
+        deviceService.removeListener(deviceListener);
+        reconciler.shutdownNow();
+        reconciler = null;
+        clearSegments();
+        snapshot = null;
 
         log.info("Stopped");
     }
@@ -208,6 +268,37 @@ public class AppComponent {
         }
     }
 
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            if (segmentDeviceId == null || edgeSubnetIP == null) {
+                return;
+            }
+            // links came or went, move the buckets of the trees they touch
+            long start = System.nanoTime();
+            configFlow();
+            SegmentPlan current = plan;
+            if (current != null) {
+                log.info("[SEG] Reconverged on {} link changes in {} us",
+                         current.changedLinks(), (System.nanoTime() - start) / 1000);
+            }
+        }
+    }
+
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public void event(DeviceEvent event) {
+            if (event.type() != DeviceEvent.Type.PORT_UPDATED || event.port() == null) {
+                return;
+            }
+            // a bucket port changed speed, weigh its groups again
+            SegmentPlan current = plan;
+            if (current != null && current.usesPort(event.subject().id(), event.port().number())) {
+                configFlow();
+            }
+        }
+    }
+
     private class ReactivePacketProcessor implements PacketProcessor {
         @Override
         public void process(PacketContext context) {
@@ -224,7 +315,7 @@ public class AppComponent {
             }
 
             log.info("Packet IN");
-            handler(context);
+            pipeline.submit(context);
         }
     }
 
@@ -255,7 +346,7 @@ public class AppComponent {
         installDstEdgeRule(vId, dstmac, dstHost.location().port(), dstHost.location().deviceId());
     }
 
-    private void configFlow(){
+    private synchronized void configFlow(){
 /*
         for(IpPrefix sIP : edgeSubnetIP.keySet()){
             DeviceId subnetDevice = edgeSubnetIP.get(sIP);
@@ -295,117 +386,202 @@ public class AppComponent {
         }
 */
 
-        for(IpPrefix sIP : edgeSubnetIP.keySet()){
-            DeviceId subnetDevice = edgeSubnetIP.get(sIP);
-            VlanId vId = VlanId.vlanId(segmentDeviceId.get(subnetDevice).shortValue());
+        SegmentPlan last = plan;
+        SegmentPlan next = SegmentPlan.build(getSnapshot(), segmentDeviceId, edgeSubnetIP, last,
+                                             this::portSpeed);
+        SegmentPlan.Diff diff = next.diff(last);
+        plan = next;
+        log.info("[SEG] Plan: {} groups, {} of {} trees reused after {} link changes, built in {} us",
+                 next.groupCount(), next.reusedTrees(), next.treeCount(), next.changedLinks(),
+                 next.buildNanos() / 1000);
+        applyPlan(diff);
+    }
 
-            Map<DeviceId, List> myGraph = getGraph();
-            Map<DeviceId, List<Link>> parentLink = getAllPath(myGraph, subnetDevice);
+    // programs only what changed between two plans
+    private void applyPlan(SegmentPlan.Diff diff){
+        if (diff.isEmpty()) {
+            log.info("[SEG] Segments unchanged, {} objectives in total", segmentObjectives);
+            return;
+        }
+        segmentObjectives += diff.objectives();
+        PathProgrammer.Batch batch = programmer.batch();
 
-            for(DeviceId dID : segmentDeviceId.keySet()){
-                VlanId segmentvId = VlanId.vlanId(segmentDeviceId.get(dID).shortValue());
-                if(segmentvId.equals(vId)){
-                    continue;
-                }
-                List<Link> to_links = parentLink.get(dID);
-                Link firstlink = to_links.get(0);
-                //log.info("{}", to_links);
-                List<PortNumber> to_ports = new LinkedList<PortNumber>();
-                for(Link li : to_links){
-                    to_ports.add(li.src().port());
-                }
-                installRule(vId, to_ports, firstlink.src().deviceId());
-                //log.info("{} TO {} WAY: {}",dID, vId, to_links.size());
+        for (SegmentPlan.Group group : diff.addedGroups()) {
+            groupService.addGroup(groupDescription(group));
+            if (!group.source()) {
+                batch.add(group.deviceId(), transitRule(group));
             }
-
-            for(IpPrefix srcIP : edgeSubnetIP.keySet()){
-                if(srcIP.equals(sIP)){
-                    continue;
-                }
-                List<Link> to_links = parentLink.get(edgeSubnetIP.get(srcIP));
-                Link firstlink = to_links.get(0);
-                List<PortNumber> to_ports = new LinkedList<PortNumber>();
-                for(Link li : to_links){
-                    to_ports.add(li.src().port());
-                }
-                installSrcEdgeRule(sIP,
-                                   VlanId.vlanId(segmentDeviceId.get(edgeSubnetIP.get(sIP)).shortValue()),
-                                   to_ports,
-                                   edgeSubnetIP.get(srcIP) );
+        }
+        for (SegmentPlan.Change change : diff.changedGroups()) {
+            patchBuckets(change);
+        }
+        for (SegmentPlan.Group group : diff.removedGroups()) {
+            if (!group.source()) {
+                batch.remove(group.deviceId(), transitRule(group));
             }
         }
+        for (SegmentPlan.SourceFlow flow : diff.removedFlows()) {
+            batch.remove(flow.deviceId(), sourceRule(flow));
+        }
+        for (SegmentPlan.SourceFlow flow : diff.addedFlows()) {
+            batch.add(flow.deviceId(), sourceRule(flow));
+        }
+
+        int added = diff.addedGroups().size();
+        int changed = diff.changedGroups().size();
+        int removed = diff.removedGroups().size();
+        batch.submit().whenComplete((nanos, error) -> {
+            if (error != null) {
+                log.info("[WARN] Segment rules failed: {}", error.getMessage());
+                return;
+            }
+            // groups go once no flow points at them
+            for (SegmentPlan.Group group : diff.removedGroups()) {
+                groupService.removeGroup(group.deviceId(), groupKey(group), appId);
+            }
+            log.info("[SEG] Groups {} added, {} patched, {} removed, flows {} added, {} removed, " +
+                     "{} objectives on {} devices in {} us, {} in total",
+                     added, changed, removed, diff.addedFlows().size(), diff.removedFlows().size(),
+                     diff.objectives(), batch.deviceCount(), nanos / 1000, segmentObjectives);
+        });
     }
 
-    private Map<DeviceId, List> getGraph(){
-        
-        Map<DeviceId, List> myGraph = new HashMap();
-        TopologyGraph currentGraph = topologyService.getGraph(topologyService.currentTopology());
-        Set<TopologyVertex> vertexes = new HashSet<TopologyVertex>(currentGraph.getVertexes());
-        for(TopologyVertex i : vertexes){
-            //log.info("Device:  "+i.deviceId().toString());
-            List vtxlist = new LinkedList<Link>();
-            Set<TopologyEdge> to_edges = currentGraph.getEdgesFrom(i);
-            for(TopologyEdge j : to_edges){
-                vtxlist.add(j.link());
+    // permanent rules do not age out, so they go with the app
+    private synchronized void clearSegments(){
+        flowRuleService.removeFlowRulesById(appId);
+        if (plan != null) {
+            for (SegmentPlan.Group group : plan.groups()) {
+                groupService.removeGroup(group.deviceId(), groupKey(group), appId);
             }
-            myGraph.put(i.deviceId(), vtxlist);
         }
-        return myGraph;
+        plan = null;
     }
 
-    private Map<DeviceId, List<Link>> getAllPath(Map<DeviceId, List> myGraph, DeviceId sourceDeviceId){
-        
-        Map<DeviceId, Integer> distance = new HashMap<DeviceId, Integer>();  //dist
-        Map<DeviceId, Link> parentLink = new HashMap<DeviceId, Link>();      //parent
-        Set<DeviceId> vertexes = new HashSet<DeviceId>(myGraph.keySet());
-        for(DeviceId i : vertexes){
-            distance.put(i,Integer.MAX_VALUE);
-            parentLink.put(i,null);
+    // brings the devices back in line with the plan, touching only what diverged
+    private synchronized void reconcile(){
+        SegmentPlan current = plan;
+        if (current == null) {
+            return;
         }
-        distance.put(sourceDeviceId,0);
-
-        while(!vertexes.isEmpty()){
-            DeviceId minVertex = null;
-            Integer minDistance = Integer.MAX_VALUE;
-            for(DeviceId i : vertexes){
-                if( distance.get(i) <= minDistance ){
-                    minVertex = i;
-                    minDistance = distance.get(i);
-                }
+        long start = System.nanoTime();
+        Map<DeviceId, Map<TrafficSelector, FlowEntry>> installed = segmentFlows();
+        PathProgrammer.Batch batch = programmer.batch();
+        int groupsAdded = 0;
+        int groupsFixed = 0;
+        int groupsRemoved = 0;
+        int flowsAdded = 0;
+        int flowsRemoved = 0;
+
+        Map<DeviceId, Set<Integer>> wanted = new HashMap<>();
+        for (SegmentPlan.Group group : current.groups()) {
+            wanted.computeIfAbsent(group.deviceId(), k -> new HashSet<>()).add(group.groupId());
+            GroupKey gKey = groupKey(group);
+            Group actual = groupService.getGroup(group.deviceId(), gKey);
+            if (actual == null) {
+                groupService.addGroup(groupDescription(group));
+                groupsAdded++;
+            } else if (actual.state() == Group.GroupState.ADDED &&
+                       !sameBuckets(actual.buckets(), buckets(group, group.ports()))) {
+                groupService.setBucketsForGroup(group.deviceId(), gKey,
+                                                buckets(group, group.ports()), gKey, appId);
+                groupsFixed++;
             }
+            if (!group.source() && !claim(installed, group.deviceId(), transitSelector(group))) {
+                batch.add(group.deviceId(), transitRule(group));
+                flowsAdded++;
+            }
+        }
+        for (SegmentPlan.SourceFlow flow : current.flows()) {
+            if (!claim(installed, flow.deviceId(), sourceSelector(flow))) {
+                batch.add(flow.deviceId(), sourceRule(flow));
+                flowsAdded++;
+            }
+        }
 
-            List<Link> to_edges = myGraph.get(minVertex);
-            for(Link i : to_edges ){
-                if( minDistance.intValue()+1 < distance.get(i.dst().deviceId()).intValue() ){
-                    distance.put(i.dst().deviceId(), new Integer(minDistance.intValue()+1) );
-                    parentLink.put(i.dst().deviceId(),i);
+        // segment flows the plan does not have any more
+        for (Map<TrafficSelector, FlowEntry> device : installed.values()) {
+            for (FlowEntry entry : device.values()) {
+                flowRuleService.removeFlowRules(entry);
+                flowsRemoved++;
+            }
+        }
+        // and their groups, once no stale flow can point at them
+        if (flowsRemoved == 0) {
+            for (int v = 0; v < current.snapshot().deviceCount(); v++) {
+                DeviceId deviceId = current.snapshot().device(v);
+                Set<Integer> ids = wanted.getOrDefault(deviceId, Collections.emptySet());
+                for (Group group : groupService.getGroups(deviceId, appId)) {
+                    if (!ids.contains(group.givenGroupId())) {
+                        groupService.removeGroup(deviceId, group.appCookie(), appId);
+                        groupsRemoved++;
+                    }
                 }
             }
-            vertexes.remove(minVertex);
         }
 
+        reconciled++;
+        int fixes = groupsAdded + groupsFixed + groupsRemoved + flowsAdded + flowsRemoved;
+        if (fixes == 0) {
+            return;
+        }
+        divergences += fixes;
+        batch.submit();
+        log.info("[SEG] Reconciled: groups {} added, {} fixed, {} removed, flows {} added, {} removed " +
+                 "in {} us, {} fixes in {} rounds",
+                 groupsAdded, groupsFixed, groupsRemoved, flowsAdded, flowsRemoved,
+                 (System.nanoTime() - start) / 1000, divergences, reconciled);
+    }
 
-        Map<DeviceId, List<Link>> multiLink = new HashMap<DeviceId, List<Link>>();
-        vertexes = new HashSet<DeviceId>(myGraph.keySet());
-        for(DeviceId vtx : distance.keySet() ){
-	    List<Link> to_edges = myGraph.get(vtx);
-            List<Link> eq_edges = new LinkedList();
-            Integer minDistance = Integer.MAX_VALUE;
-            for(Link i : to_edges){
-                Integer dist = distance.get(i.dst().deviceId());
-                //log.info("MN: {} - {}",dist.intValue(),minDistance.intValue());
-                if(dist.intValue()<minDistance.intValue()){
-                    eq_edges.clear();
-                    eq_edges.add(i);
-                    minDistance = dist;
-                }else if(dist.intValue()==minDistance.intValue()){
-                    eq_edges.add(i);
+    private void reconcileSafely(){
+        try {
+            reconcile();
+        } catch (RuntimeException e) {
+            log.info("[WARN] Segment reconciliation failed: {}", e.getMessage());
+        }
+    }
+
+    // installed flows of this app that send a segment onto a group
+    private Map<DeviceId, Map<TrafficSelector, FlowEntry>> segmentFlows(){
+        Map<DeviceId, Map<TrafficSelector, FlowEntry>> flows = new HashMap<>();
+        for (FlowEntry entry : flowRuleService.getFlowEntriesById(appId)) {
+            if (entry.priority() != DEFAULT_PRIORITY ||
+                entry.state() == FlowEntry.FlowEntryState.PENDING_REMOVE ||
+                entry.state() == FlowEntry.FlowEntryState.REMOVED) {
+                continue;
+            }
+            for (Instruction instruction : entry.treatment().allInstructions()) {
+                if (instruction.type() == Instruction.Type.GROUP) {
+                    flows.computeIfAbsent(entry.deviceId(), k -> new HashMap<>())
+                         .put(entry.selector(), entry);
+                    break;
                 }
             }
-            multiLink.put(vtx, eq_edges);
         }
+        return flows;
+    }
+
+    private static boolean claim(Map<DeviceId, Map<TrafficSelector, FlowEntry>> installed,
+                                 DeviceId deviceId, TrafficSelector selector){
+        Map<TrafficSelector, FlowEntry> device = installed.get(deviceId);
+        return device != null && device.remove(selector) != null;
+    }
+
+    private static boolean sameBuckets(GroupBuckets actual, GroupBuckets wanted){
+        return new HashSet<>(actual.buckets()).equals(new HashSet<>(wanted.buckets()));
+    }
 
-        return multiLink;
+    // CSR view of the current topology, rebuilt only when the topology changes
+    private TopologySnapshot getSnapshot(){
+        Topology topology = topologyService.currentTopology();
+        TopologySnapshot graph = snapshot;
+        if (graph == null || graph.topology() != topology) {
+            graph = TopologySnapshot.build(topology, topologyService.getGraph(topology));
+            snapshot = graph;
+            log.info("[TOPO] Snapshot: {} devices, {} links, {} bytes, built in {} us",
+                     graph.deviceCount(), graph.linkCount(), graph.estimatedBytes(),
+                     graph.buildNanos() / 1000);
+        }
+        return graph;
     }
 
     // Sends flow modify to device
@@ -478,51 +654,83 @@ public class AppComponent {
     }
 
 
-    // Sends flow modify to device 
-    private void installRule(VlanId vID, List<PortNumber> to_ports, DeviceId configDeviceId){
+    // speed of a port in Mbps, 0 when unknown
+    private long portSpeed(ConnectPoint cp){
+        Port port = deviceService.getPort(cp.deviceId(), cp.port());
+        return port == null ? 0 : port.portSpeed();
+    }
 
-        GroupKey gKey = new DefaultGroupKey((vID.toString()+"GroupBuckets").getBytes());
+    private GroupKey groupKey(SegmentPlan.Group group){
+        VlanId vID = VlanId.vlanId(group.vlan());
+        return new DefaultGroupKey((vID.toString()+(group.source() ? "SrcGroupBuckets" : "GroupBuckets")).getBytes());
+    }
 
-        List<GroupBucket> outBuckets = new ArrayList<>();
+    // a source bucket pushes the segment VLAN, a transit bucket only forwards
+    private GroupBucket bucket(SegmentPlan.Group group, PortNumber oPort){
+        TrafficTreatment.Builder gtreatment = DefaultTrafficTreatment.builder();
+        if (group.source()) {
+            gtreatment.pushVlan().setVlanId(VlanId.vlanId(group.vlan()));
+        }
+        return DefaultGroupBucket.createSelectGroupBucket(gtreatment.setOutput(oPort).build(),
+                                                          (short) group.weight(oPort));
+    }
 
+    private GroupBuckets buckets(SegmentPlan.Group group, List<PortNumber> to_ports){
+        List<GroupBucket> outBuckets = new ArrayList<>();
         for(PortNumber oPort : to_ports){
-            TrafficTreatment gtreatment = DefaultTrafficTreatment.builder()
-                        .setOutput(oPort)
-                        .build();
-
-            GroupBucket bucket = DefaultGroupBucket.createSelectGroupBucket(gtreatment);
-
-            outBuckets.add(bucket);
+            outBuckets.add(bucket(group, oPort));
         }
+        return new GroupBuckets(outBuckets);
+    }
 
-        GroupDescription desc = new DefaultGroupDescription(configDeviceId,
-                                                            GroupDescription.Type.SELECT,
-                                                            new GroupBuckets(outBuckets),
-                                                            gKey,
-                                                            new Integer(vID.toShort()),
-                                                            appId);
-        groupService.addGroup(desc);
-
+    private GroupDescription groupDescription(SegmentPlan.Group group){
+        return new DefaultGroupDescription(group.deviceId(),
+                                           GroupDescription.Type.SELECT,
+                                           buckets(group, group.ports()),
+                                           groupKey(group),
+                                           new Integer(group.groupId()),
+                                           appId);
+    }
 
-        TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
+    // only the buckets of ports that came or went are touched, new weights replace them all
+    private void patchBuckets(SegmentPlan.Change change){
+        SegmentPlan.Group group = change.after();
+        GroupKey gKey = groupKey(group);
+        if (change.reweighted()) {
+            groupService.setBucketsForGroup(group.deviceId(), gKey, buckets(group, group.ports()), gKey, appId);
+            return;
+        }
+        List<PortNumber> added = change.addedPorts();
+        List<PortNumber> removed = change.removedPorts();
+        if (!added.isEmpty()) {
+            groupService.addBucketsToGroup(group.deviceId(), gKey, buckets(group, added), gKey, appId);
+        }
+        if (!removed.isEmpty()) {
+            groupService.removeBucketsFromGroup(group.deviceId(), gKey,
+                                                buckets(change.before(), removed), gKey, appId);
+        }
+    }
 
-        selectorBuilder.matchEthType(Ethernet.TYPE_IPV4).matchVlanId(vID);
+    private TrafficSelector transitSelector(SegmentPlan.Group group){
+        return DefaultTrafficSelector.builder()
+                    .matchEthType(Ethernet.TYPE_IPV4)
+                    .matchVlanId(VlanId.vlanId(group.vlan()))
+                    .build();
+    }
 
+    // Transit flow of a segment VLAN onto its group, kept until the plan drops it
+    private ForwardingObjective.Builder transitRule(SegmentPlan.Group group){
         TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                    //.setOutput(outPort)
-                    .group(new GroupId(desc.givenGroupId().intValue() ))
+                    .group(new GroupId(group.groupId()))
                     .build();
 
-        ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
-                    .withSelector(selectorBuilder.build())
+        return DefaultForwardingObjective.builder()
+                    .withSelector(transitSelector(group))
                     .withTreatment(treatment)
                     .withPriority(DEFAULT_PRIORITY)
                     .withFlag(ForwardingObjective.Flag.VERSATILE)
                     .fromApp(appId)
-                    .makeTemporary(DEFAULT_TIMEOUT)
-                    .add();
-
-        flowObjectiveService.forward(configDeviceId, forwardingObjective);
+                    .makePermanent();
     }
 
     // Sends flow modify to device 
@@ -548,57 +756,26 @@ public class AppComponent {
     }
 
 
-    // Sends flow modify to device 
-    private void installSrcEdgeRule(IpPrefix dIP, VlanId vID,
-                                    List<PortNumber> to_ports, DeviceId configDeviceId){
-
-        GroupKey gKey = new DefaultGroupKey((vID.toString()+"SrcGroupBuckets").getBytes());
-
-        List<GroupBucket> outBuckets = new ArrayList<>();
-
-        for(PortNumber oPort : to_ports){
-            TrafficTreatment gtreatment = DefaultTrafficTreatment.builder()
-                    .pushVlan()
-                    .setVlanId(vID)
-                    .setOutput(oPort)
+    private TrafficSelector sourceSelector(SegmentPlan.SourceFlow flow){
+        return DefaultTrafficSelector.builder()
+                    .matchEthType(Ethernet.TYPE_IPV4)
+                    .matchIPDst(flow.subnet())
                     .build();
+    }
 
-
-            GroupBucket bucket = DefaultGroupBucket.createSelectGroupBucket(gtreatment);
-
-            outBuckets.add(bucket);
-        }
-
-        GroupDescription desc = new DefaultGroupDescription(configDeviceId,
-                                                            GroupDescription.Type.SELECT,
-                                                            new GroupBuckets(outBuckets),
-                                                            gKey,
-                                                            new Integer(vID.toShort()+500),
-                                                            appId);
-        groupService.addGroup(desc);
-
-
-        TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
-
-        selectorBuilder.matchEthType(Ethernet.TYPE_IPV4).matchIPDst(dIP);
-
+    // Source flow of a destination subnet onto the group pushing its VLAN, kept until the plan drops it
+    private ForwardingObjective.Builder sourceRule(SegmentPlan.SourceFlow flow){
         TrafficTreatment treatment = DefaultTrafficTreatment.builder()
-                    //.pushVlan()
-                    //.setVlanId(vID)
-                    //.setOutput(outPort)
-                    .group(new GroupId(desc.givenGroupId().intValue() ))
+                    .group(new GroupId(flow.groupId()))
                     .build();
 
-        ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
-                    .withSelector(selectorBuilder.build())
+        return DefaultForwardingObjective.builder()
+                    .withSelector(sourceSelector(flow))
                     .withTreatment(treatment)
                     .withPriority(DEFAULT_PRIORITY)
                     .withFlag(ForwardingObjective.Flag.VERSATILE)
                     .fromApp(appId)
-                    .makeTemporary(DEFAULT_TIMEOUT)
-                    .add();
-
-        flowObjectiveService.forward(configDeviceId, forwardingObjective);
+                    .makePermanent();
     }
 
     // Sends flow modify to device 
@@ -0,0 +1,588 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
+import org.onlab.packet.IpPrefix;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToLongFunction;
+
+/**
+ * Groups and flows the segments need over one topology snapshot.
+ *
+ * Every device outside a segment gets a transit SELECT group towards the
+ * segment's device, with one bucket per equal cost next hop, and a flow
+ * matching the segment VLAN onto it. Every edge device with a subnet gets
+ * a source group per other segment, pushing its VLAN, and a flow per
+ * destination subnet onto that group. Comparing two plans gives the
+ * objectives a reconfiguration really has to touch.
+ *
+ * A tree is carried over to a new snapshot unless a link that went away
+ * was one of its next hops, or a link that came up gives some device an
+ * equal or shorter way to the root; otherwise its next hops are unchanged.
+ * The trees that do need a search are found together, one breadth first
+ * search per root over the common fork-join pool.
+ *
+ * Buckets are weighted by the speed of their port, relative to the slowest
+ * next hop of the group, so a 40G uplink next to a 10G one takes four times
+ * its share. Ports of unknown speed count as the slowest.
+ */
+public final class SegmentPlan {
+
+    // source groups are numbered past the transit ones
+    public static final int SOURCE_GROUP_OFFSET = 500;
+
+    /** Largest bucket weight, whatever the spread of port speeds. */
+    public static final int MAX_WEIGHT = 100;
+
+    private static final ToLongFunction<ConnectPoint> UNKNOWN_SPEED = cp -> 0;
+
+    private final TopologySnapshot snapshot;
+    private final Map<DeviceId, Short> segments;
+    private final Map<IpPrefix, DeviceId> subnets;
+    private final Map<DeviceId, Tree> trees;
+    private final Map<DeviceId, Map<Integer, Group>> groups = new HashMap<>();
+    private final Map<DeviceId, Map<IpPrefix, SourceFlow>> flows = new HashMap<>();
+    private final int reusedTrees;
+    private final int changedLinks;
+    private final long buildNanos;
+
+    /** Equal cost next hops towards one segment device. */
+    private static final class Tree {
+        private final TopologySnapshot snapshot;
+        private final PathEngine engine;
+        private final int[] dist;
+
+        private Tree(TopologySnapshot snapshot, PathEngine engine, int[] dist){
+            this.snapshot = snapshot;
+            this.engine = engine;
+            this.dist = dist;
+        }
+
+        private List<Link> nextHops(DeviceId deviceId){
+            return engine.nextHops(dist, deviceId);
+        }
+
+        private int distance(DeviceId deviceId){
+            int v = snapshot.indexOf(deviceId);
+            return v < 0 ? Integer.MAX_VALUE : dist[v];
+        }
+
+        // whether the link changes can move any next hop of the tree
+        private boolean affectedBy(List<Link> added, List<Link> removed){
+            for (Link link : removed) {
+                int du = distance(link.src().deviceId());
+                int dw = distance(link.dst().deviceId());
+                if (dw != Integer.MAX_VALUE && dw + 1 == du) {
+                    return true;
+                }
+            }
+            for (Link link : added) {
+                int du = distance(link.src().deviceId());
+                int dw = distance(link.dst().deviceId());
+                if (dw != Integer.MAX_VALUE && (du == Integer.MAX_VALUE || dw + 1 <= du)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** One SELECT group of a device; a transit group also stands for its flow. */
+    public static final class Group {
+        private final DeviceId deviceId;
+        private final short vlan;
+        private final boolean source;
+        private final List<PortNumber> ports;
+        private final List<Integer> weights;
+
+        private Group(DeviceId deviceId, short vlan, boolean source,
+                      List<PortNumber> ports, List<Integer> weights){
+            this.deviceId = deviceId;
+            this.vlan = vlan;
+            this.source = source;
+            this.ports = Collections.unmodifiableList(ports);
+            this.weights = Collections.unmodifiableList(weights);
+        }
+
+        public DeviceId deviceId(){
+            return deviceId;
+        }
+
+        /** VLAN of the segment the group leads to. */
+        public short vlan(){
+            return vlan;
+        }
+
+        /** Whether this is a source group pushing the VLAN. */
+        public boolean source(){
+            return source;
+        }
+
+        public int groupId(){
+            return source ? vlan + SOURCE_GROUP_OFFSET : vlan;
+        }
+
+        /** Bucket output ports, in port order. */
+        public List<PortNumber> ports(){
+            return ports;
+        }
+
+        /** Bucket weights, in the order of the ports. */
+        public List<Integer> weights(){
+            return weights;
+        }
+
+        /** Weight of the port's bucket, 0 if the group has none. */
+        public int weight(PortNumber port){
+            int i = ports.indexOf(port);
+            return i < 0 ? 0 : weights.get(i);
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Group)) {
+                return false;
+            }
+            Group other = (Group) o;
+            return deviceId.equals(other.deviceId) && vlan == other.vlan &&
+                   source == other.source && ports.equals(other.ports) &&
+                   weights.equals(other.weights);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(deviceId, vlan, source, ports, weights);
+        }
+
+        @Override
+        public String toString(){
+            return deviceId + "/" + groupId() + ports + weights;
+        }
+    }
+
+    /** Flow of an edge device sending a destination subnet to a source group. */
+    public static final class SourceFlow {
+        private final DeviceId deviceId;
+        private final IpPrefix subnet;
+        private final short vlan;
+
+        private SourceFlow(DeviceId deviceId, IpPrefix subnet, short vlan){
+            this.deviceId = deviceId;
+            this.subnet = subnet;
+            this.vlan = vlan;
+        }
+
+        public DeviceId deviceId(){
+            return deviceId;
+        }
+
+        public IpPrefix subnet(){
+            return subnet;
+        }
+
+        public short vlan(){
+            return vlan;
+        }
+
+        public int groupId(){
+            return vlan + SOURCE_GROUP_OFFSET;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof SourceFlow)) {
+                return false;
+            }
+            SourceFlow other = (SourceFlow) o;
+            return deviceId.equals(other.deviceId) && subnet.equals(other.subnet) &&
+                   vlan == other.vlan;
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(deviceId, subnet, vlan);
+        }
+    }
+
+    /** A group whose buckets changed. */
+    public static final class Change {
+        private final Group before;
+        private final Group after;
+
+        private Change(Group before, Group after){
+            this.before = before;
+            this.after = after;
+        }
+
+        public Group before(){
+            return before;
+        }
+
+        public Group after(){
+            return after;
+        }
+
+        /** Ports to add buckets for. */
+        public List<PortNumber> addedPorts(){
+            return minus(after.ports, before.ports);
+        }
+
+        /** Ports whose buckets go away. */
+        public List<PortNumber> removedPorts(){
+            return minus(before.ports, after.ports);
+        }
+
+        /** Whether a port kept by the group has a new weight. */
+        public boolean reweighted(){
+            for (PortNumber port : after.ports) {
+                int weight = before.weight(port);
+                if (weight != 0 && weight != after.weight(port)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static List<PortNumber> minus(List<PortNumber> a, List<PortNumber> b){
+            List<PortNumber> ports = new ArrayList<>(a);
+            ports.removeAll(b);
+            return ports;
+        }
+    }
+
+    /** What turns one plan into another. */
+    public static final class Diff {
+        private final List<Group> addedGroups = new ArrayList<>();
+        private final List<Change> changedGroups = new ArrayList<>();
+        private final List<Group> removedGroups = new ArrayList<>();
+        private final List<SourceFlow> addedFlows = new ArrayList<>();
+        private final List<SourceFlow> removedFlows = new ArrayList<>();
+
+        private Diff(){
+        }
+
+        public List<Group> addedGroups(){
+            return addedGroups;
+        }
+
+        public List<Change> changedGroups(){
+            return changedGroups;
+        }
+
+        public List<Group> removedGroups(){
+            return removedGroups;
+        }
+
+        public List<SourceFlow> addedFlows(){
+            return addedFlows;
+        }
+
+        public List<SourceFlow> removedFlows(){
+            return removedFlows;
+        }
+
+        public boolean isEmpty(){
+            return objectives() == 0;
+        }
+
+        /** Group and flow objectives the diff touches. */
+        public int objectives(){
+            int n = addedGroups.size() + changedGroups.size() + removedGroups.size() +
+                    addedFlows.size() + removedFlows.size();
+            for (Group group : addedGroups) {
+                n += group.source ? 0 : 1;
+            }
+            for (Group group : removedGroups) {
+                n += group.source ? 0 : 1;
+            }
+            return n;
+        }
+    }
+
+    private SegmentPlan(TopologySnapshot snapshot, Map<DeviceId, Short> segments,
+                        Map<IpPrefix, DeviceId> subnets, SegmentPlan previous,
+                        ToLongFunction<ConnectPoint> speeds){
+        long start = System.nanoTime();
+        this.snapshot = snapshot;
+        this.segments = Collections.unmodifiableMap(new HashMap<>(segments));
+        this.subnets = Collections.unmodifiableMap(new HashMap<>(subnets));
+
+        // trees only depend on the links and their root
+        Map<DeviceId, Tree> last = previous == null ? Collections.emptyMap() : previous.trees;
+        List<Link> added = new ArrayList<>();
+        List<Link> removed = new ArrayList<>();
+        if (previous != null && previous.snapshot != snapshot) {
+            linkChanges(previous.snapshot, snapshot, added, removed);
+        }
+        changedLinks = added.size() + removed.size();
+        trees = new HashMap<>();
+        List<DeviceId> roots = new ArrayList<>();
+        for (DeviceId root : new HashSet<>(this.subnets.values())) {
+            Tree tree = last.get(root);
+            if (tree != null && !tree.affectedBy(added, removed)) {
+                trees.put(root, tree);
+            } else {
+                roots.add(root);
+            }
+        }
+        reusedTrees = trees.size();
+        PathEngine engine = new PathEngine(snapshot);
+        int[][] dist = engine.distancesTo(roots, ForkJoinPool.commonPool());
+        for (int i = 0; i < roots.size(); i++) {
+            trees.put(roots.get(i), new Tree(snapshot, engine, dist[i]));
+        }
+
+        for (Map.Entry<IpPrefix, DeviceId> subnet : this.subnets.entrySet()) {
+            Short vlan = this.segments.get(subnet.getValue());
+            if (vlan == null) {
+                continue;
+            }
+            Tree tree = trees.get(subnet.getValue());
+
+            for (Map.Entry<DeviceId, Short> device : this.segments.entrySet()) {
+                if (device.getValue().equals(vlan)) {
+                    continue;
+                }
+                Group group = group(device.getKey(), vlan, false, tree.nextHops(device.getKey()), speeds);
+                if (group != null) {
+                    put(group);
+                }
+            }
+
+            for (Map.Entry<IpPrefix, DeviceId> from : this.subnets.entrySet()) {
+                if (from.getKey().equals(subnet.getKey())) {
+                    continue;
+                }
+                Group group = group(from.getValue(), vlan, true, tree.nextHops(from.getValue()), speeds);
+                if (group == null) {
+                    continue;
+                }
+                put(group);
+                flows.computeIfAbsent(from.getValue(), k -> new HashMap<>())
+                     .put(subnet.getKey(), new SourceFlow(from.getValue(), subnet.getKey(), vlan));
+            }
+        }
+        buildNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Plans the segments over a snapshot, reusing the trees of the previous
+     * plan that the link changes since then leave alone.
+     */
+    public static SegmentPlan build(TopologySnapshot snapshot, Map<DeviceId, Short> segments,
+                                    Map<IpPrefix, DeviceId> subnets, SegmentPlan previous){
+        return build(snapshot, segments, subnets, previous, UNKNOWN_SPEED);
+    }
+
+    /**
+     * Plans the segments as above, weighting every bucket by the speed of
+     * its port in Mbps, 0 when unknown.
+     */
+    public static SegmentPlan build(TopologySnapshot snapshot, Map<DeviceId, Short> segments,
+                                    Map<IpPrefix, DeviceId> subnets, SegmentPlan previous,
+                                    ToLongFunction<ConnectPoint> speeds){
+        return new SegmentPlan(snapshot, segments, subnets, previous, speeds);
+    }
+
+    /** Changes from the previous plan to this one, everything if there is none. */
+    public Diff diff(SegmentPlan previous){
+        Diff diff = new Diff();
+        Map<DeviceId, Map<Integer, Group>> lastGroups =
+            previous == null ? Collections.emptyMap() : previous.groups;
+        Map<DeviceId, Map<IpPrefix, SourceFlow>> lastFlows =
+            previous == null ? Collections.emptyMap() : previous.flows;
+
+        for (Map.Entry<DeviceId, Map<Integer, Group>> device : groups.entrySet()) {
+            Map<Integer, Group> last = lastGroups.getOrDefault(device.getKey(), Collections.emptyMap());
+            for (Group group : device.getValue().values()) {
+                Group before = last.get(group.groupId());
+                if (before == null) {
+                    diff.addedGroups.add(group);
+                } else if (!before.equals(group)) {
+                    diff.changedGroups.add(new Change(before, group));
+                }
+            }
+        }
+        for (Map.Entry<DeviceId, Map<Integer, Group>> device : lastGroups.entrySet()) {
+            Map<Integer, Group> next = groups.getOrDefault(device.getKey(), Collections.emptyMap());
+            for (Group group : device.getValue().values()) {
+                if (!next.containsKey(group.groupId())) {
+                    diff.removedGroups.add(group);
+                }
+            }
+        }
+
+        for (Map.Entry<DeviceId, Map<IpPrefix, SourceFlow>> device : flows.entrySet()) {
+            Map<IpPrefix, SourceFlow> last = lastFlows.getOrDefault(device.getKey(), Collections.emptyMap());
+            for (SourceFlow flow : device.getValue().values()) {
+                SourceFlow before = last.get(flow.subnet());
+                if (!flow.equals(before)) {
+                    if (before != null) {
+                        diff.removedFlows.add(before);
+                    }
+                    diff.addedFlows.add(flow);
+                }
+            }
+        }
+        for (Map.Entry<DeviceId, Map<IpPrefix, SourceFlow>> device : lastFlows.entrySet()) {
+            Map<IpPrefix, SourceFlow> next = flows.getOrDefault(device.getKey(), Collections.emptyMap());
+            for (SourceFlow flow : device.getValue().values()) {
+                if (!next.containsKey(flow.subnet())) {
+                    diff.removedFlows.add(flow);
+                }
+            }
+        }
+        return diff;
+    }
+
+    public TopologySnapshot snapshot(){
+        return snapshot;
+    }
+
+    public Map<DeviceId, Short> segments(){
+        return segments;
+    }
+
+    public Map<IpPrefix, DeviceId> subnets(){
+        return subnets;
+    }
+
+    /** Every group of the plan. */
+    public List<Group> groups(){
+        List<Group> all = new ArrayList<>();
+        for (Map<Integer, Group> device : groups.values()) {
+            all.addAll(device.values());
+        }
+        return all;
+    }
+
+    /** Every source flow of the plan. */
+    public List<SourceFlow> flows(){
+        List<SourceFlow> all = new ArrayList<>();
+        for (Map<IpPrefix, SourceFlow> device : flows.values()) {
+            all.addAll(device.values());
+        }
+        return all;
+    }
+
+    /** Whether some bucket of the plan goes out of the port. */
+    public boolean usesPort(DeviceId deviceId, PortNumber port){
+        for (Group group : groups.getOrDefault(deviceId, Collections.emptyMap()).values()) {
+            if (group.ports.contains(port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int groupCount(){
+        int n = 0;
+        for (Map<Integer, Group> device : groups.values()) {
+            n += device.size();
+        }
+        return n;
+    }
+
+    /** Trees taken over from the previous plan instead of recomputed. */
+    public int reusedTrees(){
+        return reusedTrees;
+    }
+
+    public int treeCount(){
+        return trees.size();
+    }
+
+    /** Links that came or went since the previous plan. */
+    public int changedLinks(){
+        return changedLinks;
+    }
+
+    public long buildNanos(){
+        return buildNanos;
+    }
+
+    private void put(Group group){
+        groups.computeIfAbsent(group.deviceId, k -> new HashMap<>()).put(group.groupId(), group);
+    }
+
+    private static void linkChanges(TopologySnapshot before, TopologySnapshot after,
+                                    List<Link> added, List<Link> removed){
+        Set<Link> gone = new HashSet<>(before.linkCount() * 2);
+        for (int e = 0; e < before.linkCount(); e++) {
+            gone.add(before.link(e));
+        }
+        for (int e = 0; e < after.linkCount(); e++) {
+            if (!gone.remove(after.link(e))) {
+                added.add(after.link(e));
+            }
+        }
+        removed.addAll(gone);
+    }
+
+    // one bucket per next hop port, null without any
+    private static Group group(DeviceId deviceId, short vlan, boolean source,
+                               List<Link> links, ToLongFunction<ConnectPoint> speeds){
+        if (links == null || links.isEmpty()) {
+            return null;
+        }
+        List<ConnectPoint> points = new ArrayList<>(links.size());
+        for (Link link : links) {
+            if (!points.contains(link.src())) {
+                points.add(link.src());
+            }
+        }
+        points.sort((a, b) -> Long.compare(a.port().toLong(), b.port().toLong()));
+
+        long[] speed = new long[points.size()];
+        long slowest = Long.MAX_VALUE;
+        for (int i = 0; i < speed.length; i++) {
+            speed[i] = speeds.applyAsLong(points.get(i));
+            if (speed[i] > 0) {
+                slowest = Math.min(slowest, speed[i]);
+            }
+        }
+        List<PortNumber> ports = new ArrayList<>(speed.length);
+        List<Integer> weights = new ArrayList<>(speed.length);
+        for (int i = 0; i < speed.length; i++) {
+            ports.add(points.get(i).port());
+            weights.add(weight(speed[i], slowest));
+        }
+        return new Group(deviceId, vlan, source, ports, weights);
+    }
+
+    private static int weight(long speed, long slowest){
+        if (speed <= 0 || slowest == Long.MAX_VALUE) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(MAX_WEIGHT, Math.round((double) speed / slowest)));
+    }
+}
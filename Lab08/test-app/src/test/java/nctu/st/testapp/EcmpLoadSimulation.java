@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import nctu.st.common.TopologySnapshot;
+
+import org.onlab.packet.IpPrefix;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static nctu.st.testapp.SegmentFailoverBenchmark.LEAVES;
+import static nctu.st.testapp.SegmentFailoverBenchmark.SPINES;
+import static nctu.st.testapp.SegmentFailoverBenchmark.device;
+import static nctu.st.testapp.SegmentFailoverBenchmark.leafSpine;
+
+/**
+ * Load of the segment fabric on the simulated leaf-spine when half of the
+ * spines are reached over 10G and the other half over 40G links.
+ *
+ * Every leaf sends the same number of flows to every other leaf; each flow
+ * is hashed onto one bucket per hop, in proportion to the bucket weights,
+ * the way a device spreads flows over a SELECT group. The fabric carries
+ * traffic until its busiest link is full, so the simulation reports that
+ * throughput with equal and with speed weighted buckets.
+ *
+ * Not run by the tests, start main() from the test classpath.
+ */
+public class EcmpLoadSimulation {
+
+    static final int FLOWS_PER_PAIR = 64;
+    static final long SLOW = 10000;
+    static final long FAST = 40000;
+
+    private final SegmentPlan plan;
+    private final Map<ConnectPoint, DeviceId> peers = new HashMap<>();
+    private final Map<ConnectPoint, Long> load = new HashMap<>();
+
+    private EcmpLoadSimulation(SegmentPlan plan){
+        this.plan = plan;
+        TopologySnapshot snapshot = plan.snapshot();
+        for (int e = 0; e < snapshot.linkCount(); e++) {
+            Link link = snapshot.link(e);
+            peers.put(link.src(), link.dst().deviceId());
+        }
+    }
+
+    // spines below half the spine count are reached over slow links
+    static long speed(ConnectPoint cp){
+        int d = index(cp.deviceId());
+        int spine = d >= LEAVES ? d - LEAVES : (int) cp.port().toLong() - 1;
+        return spine < SPINES / 2 ? SLOW : FAST;
+    }
+
+    private static int index(DeviceId deviceId){
+        return Integer.parseInt(deviceId.toString().substring(3), 16) - 1;
+    }
+
+    // offered load from every leaf to every other leaf, in flows
+    private void run(){
+        for (int src = 0; src < LEAVES; src++) {
+            for (int dst = 0; dst < LEAVES; dst++) {
+                if (src == dst) {
+                    continue;
+                }
+                short vlan = plan.segments().get(device(dst));
+                for (int f = 0; f < FLOWS_PER_PAIR; f++) {
+                    long hash = mix(((long) src << 40) | ((long) dst << 20) | f);
+                    DeviceId at = device(src);
+                    boolean source = true;
+                    while (!at.equals(device(dst))) {
+                        ConnectPoint out = new ConnectPoint(at, pick(group(at, vlan, source), hash));
+                        load.merge(out, 1L, Long::sum);
+                        at = peers.get(out);
+                        source = false;
+                    }
+                }
+            }
+        }
+    }
+
+    private SegmentPlan.Group group(DeviceId deviceId, short vlan, boolean source){
+        for (SegmentPlan.Group group : plan.groups()) {
+            if (group.deviceId().equals(deviceId) && group.vlan() == vlan && group.source() == source) {
+                return group;
+            }
+        }
+        throw new IllegalStateException("no group for " + deviceId + "/" + vlan);
+    }
+
+    // weighted choice of a bucket from the flow hash
+    private static PortNumber pick(SegmentPlan.Group group, long hash){
+        List<Integer> weights = group.weights();
+        int total = 0;
+        for (int w : weights) {
+            total += w;
+        }
+        long slot = Long.remainderUnsigned(hash ^ group.deviceId().hashCode(), total);
+        for (int i = 0; i < weights.size(); i++) {
+            slot -= weights.get(i);
+            if (slot < 0) {
+                return group.ports().get(i);
+            }
+        }
+        return group.ports().get(weights.size() - 1);
+    }
+
+    // highest load per Mbps over all links
+    private double peakUtilization(){
+        double peak = 0;
+        for (Map.Entry<ConnectPoint, Long> link : load.entrySet()) {
+            peak = Math.max(peak, (double) link.getValue() / speed(link.getKey()));
+        }
+        return peak;
+    }
+
+    // share of the leaf uplink flows taken by the fast spines
+    private double fastShare(){
+        long fast = 0;
+        long all = 0;
+        for (Map.Entry<ConnectPoint, Long> link : load.entrySet()) {
+            if (index(link.getKey().deviceId()) < LEAVES) {
+                all += link.getValue();
+                fast += speed(link.getKey()) == FAST ? link.getValue() : 0;
+            }
+        }
+        return (double) fast / all;
+    }
+
+    // total flow rate the fabric carries, in Gbps, when the peak link is full
+    private double throughput(){
+        long flows = (long) LEAVES * (LEAVES - 1) * FLOWS_PER_PAIR;
+        return flows / peakUtilization() / 1000;
+    }
+
+    private static EcmpLoadSimulation simulate(boolean weighted){
+        Map<DeviceId, Short> segments = new HashMap<>();
+        Map<IpPrefix, DeviceId> subnets = new HashMap<>();
+        for (int d = 0; d < LEAVES + SPINES; d++) {
+            segments.put(device(d), (short) (101 + d));
+        }
+        for (int leaf = 0; leaf < LEAVES; leaf++) {
+            subnets.put(IpPrefix.valueOf("10.0." + leaf + ".0/24"), device(leaf));
+        }
+        SegmentPlan plan = weighted ?
+            SegmentPlan.build(leafSpine(false), segments, subnets, null, EcmpLoadSimulation::speed) :
+            SegmentPlan.build(leafSpine(false), segments, subnets, null);
+        EcmpLoadSimulation simulation = new EcmpLoadSimulation(plan);
+        simulation.run();
+        return simulation;
+    }
+
+    // mixes the bits of the flow key like a device's flow hash
+    private static long mix(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public static void main(String[] args){
+        double capacity = SPINES / 2 * (SLOW + FAST) / 1000.0;
+        System.out.printf("%d leaves, %d spines, %.0fG of uplinks per leaf, %d flows per leaf pair%n",
+                          LEAVES, SPINES, capacity, FLOWS_PER_PAIR);
+        EcmpLoadSimulation equal = simulate(false);
+        EcmpLoadSimulation weighted = simulate(true);
+        System.out.printf("equal buckets:    %.0f%% of uplink flows on 40G, fabric carries %.1fG%n",
+                          equal.fastShare() * 100, equal.throughput());
+        System.out.printf("weighted buckets: %.0f%% of uplink flows on 40G, fabric carries %.1fG (%.2fx)%n",
+                          weighted.fastShare() * 100, weighted.throughput(),
+                          weighted.throughput() / equal.throughput());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyVertex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static nctu.st.testapp.SegmentFailoverBenchmark.device;
+import static nctu.st.testapp.SegmentFailoverBenchmark.edge;
+
+/**
+ * Path engine queries on random connected topologies of up to 10k
+ * devices: a ring with one random chord per device, so E is about 4V.
+ * The time per query divided by (V + E) log V stays flat as V grows.
+ *
+ * Not run by the tests, start main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathEngineBenchmark {
+
+    static final int[] SIZES = {100, 1000, 10000};
+
+    @Param({"100", "1000", "10000"})
+    public int devices;
+
+    private TopologySnapshot snapshot;
+    private PathEngine engine;
+    private int next;
+
+    @Setup
+    public void setUp(){
+        snapshot = TopologySnapshot.build(null, randomGraph(devices, 42));
+        engine = new PathEngine(snapshot);
+    }
+
+    @Benchmark
+    public int shortestPaths(){
+        return engine.shortestPaths(source()).distance(snapshot.device(0));
+    }
+
+    @Benchmark
+    public int path(){
+        List<Link> path = engine.path(source(), source());
+        return path.size();
+    }
+
+    @Benchmark
+    public int distancesTo(){
+        return engine.distancesTo(source()).length;
+    }
+
+    // walks the devices so consecutive queries start elsewhere
+    private DeviceId source(){
+        next = (next + 7919) % devices;
+        return snapshot.device(next);
+    }
+
+    // ring 0..n-1 on ports 1 and 2, plus a chord from every device to a random one
+    static TopologyGraph randomGraph(int n, long seed){
+        Random random = new Random(seed);
+        Set<TopologyVertex> vertexes = new HashSet<>();
+        Set<TopologyEdge> edges = new HashSet<>();
+        int[] ports = new int[n];
+        for (int d = 0; d < n; d++) {
+            vertexes.add(new DefaultTopologyVertex(device(d)));
+            ports[d] = 2;
+        }
+        for (int d = 0; d < n; d++) {
+            int r = (d + 1) % n;
+            link(edges, d, 1, r, 2);
+            int c = random.nextInt(n);
+            if (c != d && c != r && (c + 1) % n != d) {
+                link(edges, d, ++ports[d], c, ++ports[c]);
+            }
+        }
+        return new DefaultTopologyGraph(vertexes, edges);
+    }
+
+    private static void link(Set<TopologyEdge> edges, int a, int aPort, int b, int bPort){
+        ConnectPoint cpA = new ConnectPoint(device(a), PortNumber.portNumber(aPort));
+        ConnectPoint cpB = new ConnectPoint(device(b), PortNumber.portNumber(bPort));
+        edges.add(edge(cpA, cpB));
+        edges.add(edge(cpB, cpA));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int n : SIZES) {
+            PathEngineBenchmark bench = new PathEngineBenchmark();
+            bench.devices = n;
+            bench.setUp();
+            int rounds = Math.max(20, 2000000 / n);
+            for (int i = 0; i < rounds; i++) {
+                bench.shortestPaths();
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                bench.shortestPaths();
+            }
+            double nanos = (double) (System.nanoTime() - start) / rounds;
+            int m = bench.snapshot.linkCount();
+            System.out.printf("%5d devices, %5d links: shortestPaths %8.1f us, %.2f ns per (V+E) log V%n",
+                              n, m, nanos / 1000, nanos / ((n + m) * (Math.log(n) / Math.log(2))));
+        }
+        new Runner(new OptionsBuilder()
+                   .include(PathEngineBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
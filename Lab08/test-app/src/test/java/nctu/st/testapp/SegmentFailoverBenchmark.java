@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import nctu.st.common.TopologySnapshot;
+
+import org.onlab.packet.IpPrefix;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller side failover time of the segment fabric on a simulated
+ * leaf-spine topology: one leaf uplink fails and the plan is rebuilt from
+ * scratch or from the plan before the failure.
+ *
+ * Not run by the tests, start main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentFailoverBenchmark {
+
+    static final int LEAVES = 64;
+    static final int SPINES = 4;
+
+    private static final ProviderId PID = new ProviderId("of", "nctu.st.testapp");
+
+    private Map<DeviceId, Short> segments;
+    private Map<IpPrefix, DeviceId> subnets;
+    private TopologySnapshot after;
+    private SegmentPlan before;
+
+    @Setup
+    public void setUp(){
+        segments = new HashMap<>();
+        subnets = new HashMap<>();
+        for (int d = 0; d < LEAVES + SPINES; d++) {
+            segments.put(device(d), (short) (101 + d));
+        }
+        for (int leaf = 0; leaf < LEAVES; leaf++) {
+            subnets.put(IpPrefix.valueOf("10.0." + leaf + ".0/24"), device(leaf));
+        }
+        before = SegmentPlan.build(leafSpine(false), segments, subnets, null);
+        after = leafSpine(true);
+    }
+
+    @Benchmark
+    public int rebuild(){
+        return SegmentPlan.build(after, segments, subnets, null).diff(before).objectives();
+    }
+
+    @Benchmark
+    public int reconverge(){
+        return SegmentPlan.build(after, segments, subnets, before).diff(before).objectives();
+    }
+
+    // leaves 0..LEAVES-1 with port s+1 to spine s; optionally leaf 0 loses spine 0
+    static TopologySnapshot leafSpine(boolean failed){
+        Set<TopologyVertex> vertexes = new HashSet<>();
+        Set<TopologyEdge> edges = new HashSet<>();
+        for (int d = 0; d < LEAVES + SPINES; d++) {
+            vertexes.add(new DefaultTopologyVertex(device(d)));
+        }
+        for (int leaf = 0; leaf < LEAVES; leaf++) {
+            for (int s = 0; s < SPINES; s++) {
+                if (failed && leaf == 0 && s == 0) {
+                    continue;
+                }
+                ConnectPoint down = new ConnectPoint(device(leaf), PortNumber.portNumber(s + 1));
+                ConnectPoint up = new ConnectPoint(device(LEAVES + s), PortNumber.portNumber(leaf + 1));
+                edges.add(edge(down, up));
+                edges.add(edge(up, down));
+            }
+        }
+        return TopologySnapshot.build(null, new DefaultTopologyGraph(vertexes, edges));
+    }
+
+    static DeviceId device(int d){
+        return DeviceId.deviceId(String.format("of:%016x", d + 1));
+    }
+
+    static TopologyEdge edge(ConnectPoint src, ConnectPoint dst){
+        Link link = DefaultLink.builder().providerId(PID).src(src).dst(dst)
+                                .type(Link.Type.DIRECT).build();
+        return new DefaultTopologyEdge(new DefaultTopologyVertex(src.deviceId()),
+                                       new DefaultTopologyVertex(dst.deviceId()), link);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        SegmentFailoverBenchmark bench = new SegmentFailoverBenchmark();
+        bench.setUp();
+        SegmentPlan plan = SegmentPlan.build(bench.after, bench.segments, bench.subnets, bench.before);
+        SegmentPlan.Diff diff = plan.diff(bench.before);
+        System.out.printf("%d leaves, %d spines: %d of %d trees reused, %d groups patched, " +
+                          "%d objectives instead of %d%n",
+                          LEAVES, SPINES, plan.reusedTrees(), plan.treeCount(),
+                          diff.changedGroups().size(), diff.objectives(), plan.diff(null).objectives());
+        new Runner(new OptionsBuilder()
+                   .include(SegmentFailoverBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import nctu.st.common.TopologySnapshot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.onlab.packet.IpPrefix;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static nctu.st.testapp.SegmentFailoverBenchmark.device;
+import static nctu.st.testapp.SegmentFailoverBenchmark.edge;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the segment plan and its diff.
+ */
+public class SegmentPlanTest {
+
+    private static final IpPrefix NET0 = IpPrefix.valueOf("10.0.0.0/24");
+    private static final IpPrefix NET1 = IpPrefix.valueOf("10.0.1.0/24");
+    private static final IpPrefix NET3 = IpPrefix.valueOf("10.0.3.0/24");
+
+    // device, port, device, port of the links in both directions
+    private static final int[] LINK_01 = {0, 1, 1, 1};
+    private static final int[] LINK_02 = {0, 2, 2, 1};
+    private static final int[] LINK_13 = {1, 2, 3, 1};
+    private static final int[] LINK_23 = {2, 2, 3, 2};
+    // 1 and 2 are as far from every root, so this is no tree's next hop
+    private static final int[] CROSS = {1, 3, 2, 3};
+    private static final int[] OTHER_CROSS = {1, 4, 2, 4};
+
+    private TopologySnapshot myGraph;
+    private Map<DeviceId, Short> segments;
+    private Map<IpPrefix, DeviceId> subnets;
+
+    // diamond 0 - {1, 2} - 3, device d in VLAN 101 + d, subnets on 0 and 3
+    @Before
+    public void setUp() {
+        myGraph = diamond();
+        segments = new HashMap<>();
+        for (int d = 0; d < 4; d++) {
+            segments.put(device(d), (short) (101 + d));
+        }
+        subnets = new HashMap<>();
+        subnets.put(NET0, device(0));
+        subnets.put(NET3, device(3));
+    }
+
+    static TopologySnapshot diamond() {
+        return graph(LINK_01, LINK_02, LINK_13, LINK_23);
+    }
+
+    // devices 0 to 3 and the given links
+    static TopologySnapshot graph(int[]... links) {
+        Set<TopologyVertex> vertexes = new HashSet<>();
+        Set<TopologyEdge> edges = new HashSet<>();
+        for (int d = 0; d < 4; d++) {
+            vertexes.add(new DefaultTopologyVertex(device(d)));
+        }
+        for (int[] link : links) {
+            addBidirectional(edges, link[0], link[1], link[2], link[3]);
+        }
+        return TopologySnapshot.build(null, new DefaultTopologyGraph(vertexes, edges));
+    }
+
+    static void addBidirectional(Set<TopologyEdge> edges, int a, long aPort, int b, long bPort) {
+        ConnectPoint cpA = new ConnectPoint(device(a), PortNumber.portNumber(aPort));
+        ConnectPoint cpB = new ConnectPoint(device(b), PortNumber.portNumber(bPort));
+        edges.add(edge(cpA, cpB));
+        edges.add(edge(cpB, cpA));
+    }
+
+    static String transit(int d, int vlan, long... ports) {
+        return group(device(d), vlan, false, ports);
+    }
+
+    static String source(int d, int vlan, long... ports) {
+        return group(device(d), vlan, true, ports);
+    }
+
+    private static String group(DeviceId deviceId, int vlan, boolean source, long... ports) {
+        return deviceId + "/" + vlan + (source ? " source " : " transit ") + Arrays.toString(ports);
+    }
+
+    static String flow(int d, IpPrefix subnet, int vlan) {
+        return device(d) + " " + subnet + " " + vlan;
+    }
+
+    static Set<String> groups(List<SegmentPlan.Group> groups) {
+        Set<String> names = new HashSet<>();
+        for (SegmentPlan.Group group : groups) {
+            long[] ports = new long[group.ports().size()];
+            for (int i = 0; i < ports.length; i++) {
+                ports[i] = group.ports().get(i).toLong();
+            }
+            names.add(group(group.deviceId(), group.vlan(), group.source(), ports));
+        }
+        return names;
+    }
+
+    static Set<String> flows(List<SegmentPlan.SourceFlow> flows) {
+        Set<String> names = new HashSet<>();
+        for (SegmentPlan.SourceFlow flow : flows) {
+            names.add(flow.deviceId() + " " + flow.subnet() + " " + flow.vlan());
+        }
+        return names;
+    }
+
+    static Set<String> names(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private static SegmentPlan.Change change(SegmentPlan.Diff diff, int d, int vlan, boolean source) {
+        for (SegmentPlan.Change change : diff.changedGroups()) {
+            SegmentPlan.Group group = change.after();
+            if (group.deviceId().equals(device(d)) && group.vlan() == vlan && group.source() == source) {
+                return change;
+            }
+        }
+        throw new AssertionError("no change of " + group(device(d), vlan, source));
+    }
+
+    private static List<SegmentPlan.Group> after(SegmentPlan.Diff diff) {
+        List<SegmentPlan.Group> groups = new ArrayList<>();
+        for (SegmentPlan.Change change : diff.changedGroups()) {
+            groups.add(change.after());
+        }
+        return groups;
+    }
+
+    // a plan reusing trees must look like one searched from scratch
+    private void assertSameAsFresh(SegmentPlan plan) {
+        SegmentPlan fresh = SegmentPlan.build(plan.snapshot(), segments, subnets, null);
+        assertEquals(groups(fresh.groups()), groups(plan.groups()));
+        assertEquals(flows(fresh.flows()), flows(plan.flows()));
+    }
+
+    @Test
+    public void initialPlan() {
+        SegmentPlan.Diff diff = SegmentPlan.build(myGraph, segments, subnets, null).diff(null);
+        assertEquals(names(transit(0, 104, 1, 2), transit(1, 104, 2), transit(2, 104, 2),
+                           source(0, 104, 1, 2),
+                           transit(1, 101, 1), transit(2, 101, 1), transit(3, 101, 1, 2),
+                           source(3, 101, 1, 2)),
+                     groups(diff.addedGroups()));
+        assertEquals(names(flow(0, NET3, 104), flow(3, NET0, 101)), flows(diff.addedFlows()));
+        assertTrue(diff.changedGroups().isEmpty());
+        assertTrue(diff.removedGroups().isEmpty());
+        assertTrue(diff.removedFlows().isEmpty());
+        // transit groups carry a flow each, source groups share the subnet flows
+        assertEquals(8 + 6 + 2, diff.objectives());
+    }
+
+    @Test
+    public void subnetAdded() {
+        SegmentPlan before = SegmentPlan.build(myGraph, segments, subnets, null);
+        subnets.put(NET1, device(1));
+        SegmentPlan after = SegmentPlan.build(myGraph, segments, subnets, before);
+        SegmentPlan.Diff diff = after.diff(before);
+        assertEquals(names(transit(0, 102, 1), transit(2, 102, 1, 2), transit(3, 102, 1),
+                           source(0, 102, 1), source(3, 102, 1),
+                           source(1, 104, 2), source(1, 101, 1)),
+                     groups(diff.addedGroups()));
+        assertEquals(names(flow(0, NET1, 102), flow(3, NET1, 102),
+                           flow(1, NET3, 104), flow(1, NET0, 101)),
+                     flows(diff.addedFlows()));
+        assertTrue(diff.changedGroups().isEmpty());
+        assertTrue(diff.removedGroups().isEmpty());
+        assertTrue(diff.removedFlows().isEmpty());
+    }
+
+    @Test
+    public void subnetRemoved() {
+        subnets.put(NET1, device(1));
+        SegmentPlan before = SegmentPlan.build(myGraph, segments, subnets, null);
+        subnets.remove(NET1);
+        SegmentPlan after = SegmentPlan.build(myGraph, segments, subnets, before);
+        SegmentPlan.Diff diff = after.diff(before);
+        assertEquals(names(transit(0, 102, 1), transit(2, 102, 1, 2), transit(3, 102, 1),
+                           source(0, 102, 1), source(3, 102, 1),
+                           source(1, 104, 2), source(1, 101, 1)),
+                     groups(diff.removedGroups()));
+        assertEquals(names(flow(0, NET1, 102), flow(3, NET1, 102),
+                           flow(1, NET3, 104), flow(1, NET0, 101)),
+                     flows(diff.removedFlows()));
+        assertTrue(diff.addedGroups().isEmpty());
+        assertTrue(diff.changedGroups().isEmpty());
+        assertTrue(diff.addedFlows().isEmpty());
+    }
+
+    @Test
+    public void vlanChanged() {
+        SegmentPlan before = SegmentPlan.build(myGraph, segments, subnets, null);
+        segments.put(device(3), (short) 114);
+        SegmentPlan after = SegmentPlan.build(myGraph, segments, subnets, before);
+        SegmentPlan.Diff diff = after.diff(before);
+        assertEquals(names(transit(0, 114, 1, 2), transit(1, 114, 2), transit(2, 114, 2),
+                           source(0, 114, 1, 2)),
+                     groups(diff.addedGroups()));
+        assertEquals(names(transit(0, 104, 1, 2), transit(1, 104, 2), transit(2, 104, 2),
+                           source(0, 104, 1, 2)),
+                     groups(diff.removedGroups()));
+        assertEquals(names(flow(0, NET3, 114)), flows(diff.addedFlows()));
+        assertEquals(names(flow(0, NET3, 104)), flows(diff.removedFlows()));
+        assertTrue(diff.changedGroups().isEmpty());
+        // the tree of device 3 does not depend on its VLAN
+        assertEquals(2, after.reusedTrees());
+    }
+
+    @Test
+    public void identicalRebuild() {
+        SegmentPlan before = SegmentPlan.build(myGraph, segments, subnets, null);
+        SegmentPlan reused = SegmentPlan.build(myGraph, segments, subnets, before);
+        assertTrue(reused.diff(before).isEmpty());
+        assertEquals(0, reused.diff(before).objectives());
+        assertEquals(2, reused.reusedTrees());
+
+        SegmentPlan fresh = SegmentPlan.build(diamond(), segments, subnets, null);
+        assertTrue(fresh.diff(before).isEmpty());
+        assertFalse(fresh.diff(null).isEmpty());
+    }
+
+    @Test
+    public void removedLinkOffTheTrees() {
+        SegmentPlan before = SegmentPlan.build(graph(LINK_01, LINK_02, LINK_13, LINK_23, CROSS),
+                                               segments, subnets, null);
+        SegmentPlan after = SegmentPlan.build(diamond(), segments, subnets, before);
+        assertEquals(2, after.changedLinks());
+        assertEquals(2, after.reusedTrees());
+        assertTrue(after.diff(before).isEmpty());
+        assertSameAsFresh(after);
+    }
+
+    @Test
+    public void removedNextHopLink() {
+        SegmentPlan before = SegmentPlan.build(diamond(), segments, subnets, null);
+        SegmentPlan after = SegmentPlan.build(graph(LINK_01, LINK_02, LINK_23), segments, subnets, before);
+        assertEquals(0, after.reusedTrees());
+        SegmentPlan.Diff diff = after.diff(before);
+        // 1 now reaches 3 back through 0, 0 and 3 only through 2
+        assertEquals(names(transit(1, 104, 1), transit(0, 104, 2), source(0, 104, 2),
+                           transit(3, 101, 2), source(3, 101, 2)),
+                     groups(after(diff)));
+        assertEquals(Arrays.asList(PortNumber.portNumber(2)), change(diff, 1, 104, false).removedPorts());
+        assertTrue(diff.addedGroups().isEmpty());
+        assertTrue(diff.removedGroups().isEmpty());
+        assertSameAsFresh(after);
+    }
+
+    @Test
+    public void addedEqualCostLink() {
+        SegmentPlan before = SegmentPlan.build(graph(LINK_02, LINK_13, LINK_23), segments, subnets, null);
+        SegmentPlan after = SegmentPlan.build(diamond(), segments, subnets, before);
+        assertEquals(0, after.reusedTrees());
+        SegmentPlan.Diff diff = after.diff(before);
+        // 0 gains 1 as a second way to 3, 1 a shorter way to 0
+        SegmentPlan.Change change = change(diff, 0, 104, false);
+        assertEquals(Arrays.asList(PortNumber.portNumber(1)), change.addedPorts());
+        assertTrue(change.removedPorts().isEmpty());
+        assertEquals(Arrays.asList(PortNumber.portNumber(1)), change(diff, 0, 104, true).addedPorts());
+        assertEquals(Arrays.asList(PortNumber.portNumber(1)), change(diff, 1, 101, false).addedPorts());
+        assertEquals(Arrays.asList(PortNumber.portNumber(2)), change(diff, 1, 101, false).removedPorts());
+        assertSameAsFresh(after);
+    }
+
+    @Test
+    public void unrelatedChangesInARow() {
+        SegmentPlan plan = SegmentPlan.build(graph(LINK_01, LINK_02, LINK_13, LINK_23, CROSS),
+                                             segments, subnets, null);
+        plan = SegmentPlan.build(diamond(), segments, subnets, plan);
+        assertEquals(2, plan.reusedTrees());
+        SegmentPlan last = plan;
+        plan = SegmentPlan.build(graph(LINK_01, LINK_02, LINK_13, LINK_23, OTHER_CROSS),
+                                 segments, subnets, plan);
+        assertEquals(2, plan.reusedTrees());
+        assertTrue(plan.diff(last).isEmpty());
+        assertSameAsFresh(plan);
+
+        // trees kept over two snapshots still give way to a real change
+        plan = SegmentPlan.build(graph(LINK_01, LINK_02, LINK_23, OTHER_CROSS), segments, subnets, plan);
+        assertEquals(0, plan.reusedTrees());
+        assertSameAsFresh(plan);
+        assertTrue(groups(plan.groups()).contains(transit(1, 104, 4)));
+    }
+
+}
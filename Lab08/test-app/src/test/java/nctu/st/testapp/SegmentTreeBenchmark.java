@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static nctu.st.testapp.SegmentFailoverBenchmark.device;
+import static nctu.st.testapp.SegmentFailoverBenchmark.edge;
+
+/**
+ * Time to find the trees of 1k segments on a 32x32 torus: a Dijkstra per
+ * root, as the plan did before, against one breadth first search per root
+ * in the calling thread and over the fork-join pool. Every variant ends
+ * with the distances and the next hops of every device towards each root.
+ *
+ * Not run by the tests, start main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentTreeBenchmark {
+
+    static final int SIDE = 32;
+
+    private TopologySnapshot snapshot;
+    private PathEngine engine;
+    private List<DeviceId> roots;
+
+    @Setup
+    public void setUp(){
+        snapshot = torus();
+        engine = new PathEngine(snapshot);
+        roots = new ArrayList<>();
+        for (int d = 0; d < SIDE * SIDE; d++) {
+            roots.add(device(d));
+        }
+    }
+
+    @Benchmark
+    public int perRoot(){
+        int n = 0;
+        for (DeviceId root : roots) {
+            n += nextHops(engine.distancesTo(root));
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int batched(){
+        return nextHops(engine.distancesTo(roots, null));
+    }
+
+    @Benchmark
+    public int forkJoin(){
+        return nextHops(engine.distancesTo(roots, ForkJoinPool.commonPool()));
+    }
+
+    private int nextHops(int[][] dist){
+        int n = 0;
+        for (int[] tree : dist) {
+            n += nextHops(tree);
+        }
+        return n;
+    }
+
+    // next hops of every device, as the plan builds its groups from them
+    private int nextHops(int[] dist){
+        int n = 0;
+        for (int v = 0; v < snapshot.deviceCount(); v++) {
+            n += engine.nextHops(dist, snapshot.device(v)).size();
+        }
+        return n;
+    }
+
+    // device x + y * SIDE, ports 1..4 towards +x, -x, +y, -y with wraparound
+    static TopologySnapshot torus(){
+        Set<TopologyVertex> vertexes = new HashSet<>();
+        Set<TopologyEdge> edges = new HashSet<>();
+        for (int d = 0; d < SIDE * SIDE; d++) {
+            vertexes.add(new DefaultTopologyVertex(device(d)));
+        }
+        for (int y = 0; y < SIDE; y++) {
+            for (int x = 0; x < SIDE; x++) {
+                int d = x + y * SIDE;
+                int right = (x + 1) % SIDE + y * SIDE;
+                int down = x + (y + 1) % SIDE * SIDE;
+                ConnectPoint east = new ConnectPoint(device(d), PortNumber.portNumber(1));
+                ConnectPoint west = new ConnectPoint(device(right), PortNumber.portNumber(2));
+                ConnectPoint south = new ConnectPoint(device(d), PortNumber.portNumber(3));
+                ConnectPoint north = new ConnectPoint(device(down), PortNumber.portNumber(4));
+                edges.add(edge(east, west));
+                edges.add(edge(west, east));
+                edges.add(edge(south, north));
+                edges.add(edge(north, south));
+            }
+        }
+        return TopologySnapshot.build(null, new DefaultTopologyGraph(vertexes, edges));
+    }
+
+    // average milliseconds of a few rounds after as many warm-up rounds
+    private static double time(Runnable task){
+        int rounds = 5;
+        for (int i = 0; i < rounds; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / rounds;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        SegmentTreeBenchmark bench = new SegmentTreeBenchmark();
+        bench.setUp();
+        double perRoot = time(bench::perRoot);
+        double batched = time(bench::batched);
+        double forkJoin = time(bench::forkJoin);
+        System.out.printf("%d segments, %d links, %d threads: per root %.1f ms, batched %.1f ms (%.1fx), " +
+                          "fork-join %.1f ms (%.1fx)%n",
+                          bench.roots.size(), bench.snapshot.linkCount(),
+                          ForkJoinPool.commonPool().getParallelism(), perRoot, batched, perRoot / batched,
+                          forkJoin, perRoot / forkJoin);
+        new Runner(new OptionsBuilder()
+                   .include(SegmentTreeBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
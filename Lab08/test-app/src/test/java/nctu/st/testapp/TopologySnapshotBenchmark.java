@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.testapp;
+
+import nctu.st.common.TopologySnapshot;
+
+import org.onosproject.net.topology.TopologyGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static nctu.st.testapp.PathEngineBenchmark.SIZES;
+import static nctu.st.testapp.PathEngineBenchmark.randomGraph;
+
+/**
+ * Build time and footprint of the topology snapshot on the random
+ * topologies of the path engine benchmark.
+ *
+ * main() prints estimatedBytes() of every size next to the heap a built
+ * snapshot actually retains, then times the builds with JMH.
+ *
+ * Not run by the tests, start main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopologySnapshotBenchmark {
+
+    // heap filled with snapshots to measure what one retains
+    private static final long RETAINED_SAMPLE = 64L << 20;
+
+    @Param({"100", "1000", "10000"})
+    public int devices;
+
+    private TopologyGraph graph;
+
+    @Setup
+    public void setUp(){
+        graph = randomGraph(devices, 42);
+    }
+
+    @Benchmark
+    public TopologySnapshot build(){
+        return TopologySnapshot.build(null, graph);
+    }
+
+    // heap in use after a few collections
+    private static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int n : SIZES) {
+            TopologySnapshotBenchmark bench = new TopologySnapshotBenchmark();
+            bench.devices = n;
+            bench.setUp();
+            // a first build lets the graph fill any index it keeps
+            TopologySnapshot snapshot = bench.build();
+            // enough copies to stand out of the collector's noise
+            TopologySnapshot[] kept = new TopologySnapshot[(int) Math.max(4, RETAINED_SAMPLE /
+                                                                            snapshot.estimatedBytes())];
+            long before = usedHeap();
+            for (int i = 0; i < kept.length; i++) {
+                kept[i] = bench.build();
+            }
+            long retained = (usedHeap() - before) / kept.length;
+            System.out.printf("%5d devices, %5d links: estimatedBytes %8d, retained about %8d, " +
+                              "built in %d us%n",
+                              snapshot.deviceCount(), snapshot.linkCount(), snapshot.estimatedBytes(),
+                              retained, kept[0].buildNanos() / 1000);
+        }
+        new Runner(new OptionsBuilder()
+                   .include(TopologySnapshotBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
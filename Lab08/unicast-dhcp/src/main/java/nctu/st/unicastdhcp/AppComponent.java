@@ -15,6 +15,10 @@
  */
 package nctu.st.unicastdhcp;
 
+import nctu.st.common.PacketPipeline;
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
 import com.google.common.collect.ImmutableSet;
 
 import org.apache.felix.scr.annotations.Activate;
@@ -45,11 +49,16 @@ import org.onosproject.net.packet.DefaultOutboundPacket;
 
 import org.onosproject.net.host.HostService;
 import org.onosproject.net.edge.EdgePortService;
+import org.onosproject.net.edge.EdgePortEvent;
+import org.onosproject.net.edge.EdgePortListener;
 import org.onosproject.net.Link;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.Host;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
 import org.onosproject.net.PortNumber;
 
 import org.onosproject.net.flowobjective.FlowObjectiveService;
@@ -62,6 +71,9 @@ import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
 import org.onosproject.net.topology.TopologyService;
 import org.onosproject.net.topology.TopologyGraph;
 import org.onosproject.net.topology.TopologyVertex;
@@ -76,6 +88,9 @@ import org.onlab.packet.MacAddress;
 import org.onlab.packet.Ip4Address;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Set;
@@ -90,9 +105,15 @@ import nctu.st.unicastdhcp.MyConfig;
  * Skeletal ONOS application component.
  */
 @Component(immediate = true)
-public class AppComponent {
+@Service
+public class AppComponent implements DhcpTransactionService {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // packet-in work is handed to workers partitioned by client hardware address
+    private static final int PIPELINE_WORKERS = 4;
+    private static final int PIPELINE_QUEUE_SIZE = 1024;
+    private static final PacketPipeline.Overflow PIPELINE_OVERFLOW = PacketPipeline.Overflow.DROP;
     
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected CoreService coreService;
@@ -120,12 +141,29 @@ public class AppComponent {
 
     private ApplicationId appId;
     private ReactivePacketProcessor processor = new ReactivePacketProcessor();
+    private PacketPipeline pipeline;
+    private PacketClassifier classifier;
+    private volatile TopologySnapshot snapshot;
+    private final InFlightTable inFlight = new InFlightTable(IN_FLIGHT_TTL);
+    private PathProgrammer programmer;
     private final InternalConfigListener cfgListener = new InternalConfigListener();
+    private final InternalTopologyListener topologyListener = new InternalTopologyListener();
+    private volatile List<DhcpServer> servers = Collections.emptyList();
+    private volatile DhcpServerSet serverSet;
+    private final InternalDeviceListener deviceListener = new InternalDeviceListener();
+    private DhcpTreeRules treeRules;
+    private final InternalEdgePortListener edgeListener = new InternalEdgePortListener();
+    private final DhcpTransactions transactions = new DhcpTransactions(MAX_TRANSACTIONS);
 
     private static final int DEFAULT_TIMEOUT = 60;
     private static final int DEFAULT_PRIORITY = 4000;
-    private static String dhcpMac = "FF:FF:FF:FF:FF:FF";
-    private static String dhcpCPoint = "of:0000000000000000/0";
+    // permanent server tree rules win over the reactive per-client ones
+    private static final int TREE_PRIORITY = 4100;
+    // how long packet-ins of a flow are assumed to be waiting for its rules
+    private static final long IN_FLIGHT_TTL = 2000;
+    // copy DHCP messages at the servers' switches to time transactions
+    private static final boolean TRACK_TRANSACTIONS = true;
+    private static final int MAX_TRANSACTIONS = 4096;
     
     private final Set<ConfigFactory> factories = ImmutableSet.of(
         new ConfigFactory<ApplicationId, MyConfig>(
@@ -140,10 +178,22 @@ public class AppComponent {
     @Activate
     protected void activate() {
         appId = coreService.registerApplication("nctu.st.unicastdhcp");
+        programmer = new PathProgrammer(flowObjectiveService);
+        treeRules = new DhcpTreeRules(appId, programmer, TREE_PRIORITY, TRACK_TRANSACTIONS);
+        edgeService.addListener(edgeListener);
 
         cfgService.addListener(cfgListener);
         factories.forEach(cfgService::registerConfigFactory);
         cfgListener.reconfigureNetwork(cfgService.getConfig(appId, MyConfig.class));
+        topologyService.addListener(topologyListener);
+        deviceService.addListener(deviceListener);
+
+        pipeline = new PacketPipeline("unicastdhcp", PIPELINE_WORKERS, PIPELINE_QUEUE_SIZE,
+                                      PIPELINE_OVERFLOW, this::dhcpHandler, log);
+        pipeline.start();
+        classifier = new PacketClassifier()
+                .on(PacketClassifier.Kind.DHCP_CLIENT, this::submitDhcp)
+                .on(PacketClassifier.Kind.DHCP_SERVER, this::submitDhcp);
 
         packetService.addProcessor(processor, PacketProcessor.director(2));
         TrafficSelector.Builder selector = DefaultTrafficSelector.builder();
@@ -165,9 +215,27 @@ public class AppComponent {
         packetService.cancelPackets(selector.build(), PacketPriority.REACTIVE, appId);
         packetService.removeProcessor(processor);
         processor = null;
+        pipeline.stop();
+        pipeline = null;
+        classifier = null;
 
         cfgService.removeListener(cfgListener);
         factories.forEach(cfgService::unregisterConfigFactory);
+        topologyService.removeListener(topologyListener);
+        edgeService.removeListener(edgeListener);
+        deviceService.removeListener(deviceListener);
+        treeRules.clear().submit();
+        log.info("[DHCP] Tree rules: {} added, {} removed in total",
+                 treeRules.added(), treeRules.removed());
+        treeRules = null;
+        snapshot = null;
+        serverSet = null;
+        inFlight.clear();
+        log.info("[DHCP] Transactions: {} completed, {} open, total p50 {} us, p99 {} us",
+                 transactions.completed(), transactions.openCount(),
+                 transactions.percentile(DhcpTransactions.Phase.TOTAL, 0.5),
+                 transactions.percentile(DhcpTransactions.Phase.TOTAL, 0.99));
+        transactions.clear();
 
         log.info("Stopped");
     }
@@ -180,7 +248,7 @@ public class AppComponent {
                  event.configClass().equals(MyConfig.class)) {
                     MyConfig cfg = cfgService.getConfig(appId, MyConfig.class);
                     reconfigureNetwork(cfg);
-                    log.info("[Reconfigured] mac: {}, dhcpCPoint: {} ", dhcpMac, dhcpCPoint);
+                    log.info("[Reconfigured] servers: {} ", servers);
                  }
         }
 
@@ -189,15 +257,56 @@ public class AppComponent {
             if (cfg == null) {
                 return;
             }
-            if (cfg.getCPoint() != null) {
-                dhcpCPoint = cfg.getCPoint();
+            List<DhcpServer> parsed = cfg.getServers();
+            if (parsed == null || parsed.isEmpty()) {
+                log.info("[WARN] Bad DHCP servers in config: {}", cfg.node());
+                return;
             }
-            if (cfg.getMAC() != null) {
-                dhcpMac = cfg.getMAC();
+            // published in one write, the packet path never sees half a config
+            servers = Collections.unmodifiableList(new ArrayList<>(parsed));
+            inFlight.clear();
+            rebuildServerSet();
+        }
+    }
+
+    private class InternalEdgePortListener implements EdgePortListener {
+        @Override
+        public void event(EdgePortEvent event) {
+            // hosts came or went, replies go out of a different set of ports
+            syncTreeRules(serverSet);
+        }
+    }
+
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public void event(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_AVAILABILITY_CHANGED:
+                case DEVICE_REMOVED:
+                case PORT_UPDATED:
+                case PORT_REMOVED:
+                    break;
+                default:
+                    return;
+            }
+            // a server went up or down with its switch or port
+            for (DhcpServer dhcp : servers) {
+                if (dhcp.deviceId().equals(event.subject().id())) {
+                    rebuildServerSet();
+                    return;
+                }
             }
         }
     }
 
+    private class InternalTopologyListener implements TopologyListener {
+        @Override
+        public void event(TopologyEvent event) {
+            inFlight.clear();
+            rebuildServerSet();
+        }
+    }
+
     private class ReactivePacketProcessor implements PacketProcessor {
         @Override
         public void process(PacketContext context) {
@@ -206,24 +315,14 @@ public class AppComponent {
                 return;
             }
 
-            InboundPacket pkt = context.inPacket();
-            Ethernet ethPkt = pkt.parsed();
-
             // Not ethernet packet
-            if (ethPkt == null) {
+            if (context.inPacket().parsed() == null) {
                 return;
             }
 
-            // DHCP packet
-            if(ethPkt.getEtherType() == ethPkt.TYPE_IPV4){
-                IPv4 ip4Payload = (IPv4) ethPkt.getPayload();
-                if(ip4Payload.getProtocol() == IPv4.PROTOCOL_UDP ){
-                    UDP udpPayload = (UDP) ip4Payload.getPayload();
-                    if(udpPayload.getSourcePort() == UDP.DHCP_CLIENT_PORT ){
-                        dhcpHandler(context);
-                        return;
-                    }
-                }
+            // DHCP packet, classified from the raw frame
+            if (classifier.dispatch(context)) {
+                return;
             }
 
             // IPV4 packet
@@ -237,7 +336,7 @@ public class AppComponent {
         MacAddress srcmac = ethPkt.getSourceMAC();
         MacAddress dstmac = ethPkt.getDestinationMAC();
 
-        Map<DeviceId, List> myGraph = getGraph();
+        PathEngine engine = new PathEngine(getSnapshot());
         
         //get source device
         Set<Host> findHosts = hostService.getHostsByMac(srcmac);
@@ -248,7 +347,7 @@ public class AppComponent {
         Host firstHost = findHosts.iterator().next();
         DeviceId sourceDeviceId = firstHost.location().deviceId();
 
-        Map<DeviceId, Link> parentLink = getAllPath(myGraph, sourceDeviceId);
+        PathEngine.Tree tree = engine.shortestPaths(sourceDeviceId);
 
         //find path
         findHosts = hostService.getHostsByMac(dstmac);
@@ -258,7 +357,7 @@ public class AppComponent {
         log.info("[IPV4] Install: {} {} {}", srcmac, dstmac, dstCP.port(), dstCP.deviceId() );
         while(dstCP.deviceId() != sourceDeviceId){
             //log.info( "Path:  "+dstCP.deviceId().toString() );
-            Link linkPath = parentLink.get(dstCP.deviceId());
+            Link linkPath = tree.parentLink(dstCP.deviceId());
             if(linkPath==null) break;
             installRule(srcmac, dstmac, linkPath.src().port(), linkPath.src().deviceId());
             log.info("[IPV4] Install: {} {} {}", srcmac, dstmac, linkPath.src().port(), linkPath.src().deviceId() );
@@ -267,123 +366,202 @@ public class AppComponent {
 
     }
 
-    private void dhcpHandler(PacketContext context){
+    @Override
+    public DhcpTransactions transactions(){
+        return transactions;
+    }
+
+    // stamped on the dispatch thread, so queueing counts towards the transaction;
+    // requests and replies of one client share a worker and are seen in order
+    private void submitDhcp(PacketContext context){
+        long received = System.nanoTime();
+        long client = DhcpTransactions.client(context.inPacket().unparsed());
+        if (client < 0) {
+            pipeline.submit(context, received);
+        } else {
+            pipeline.submit(context, received, client);
+        }
+    }
+
+    private void dhcpHandler(PacketContext context, long received){
+        long start = System.nanoTime();
+        try {
+            handleDhcp(context, received);
+        } finally {
+            transactions.recordProcessing(System.nanoTime() - start);
+        }
+    }
+
+    private void handleDhcp(PacketContext context, long received){
         InboundPacket pkt = context.inPacket();
         ConnectPoint toHostCP = pkt.receivedFrom();
         Ethernet ethPkt = pkt.parsed();
         MacAddress srcmac = ethPkt.getSourceMAC();
-        MacAddress dstmac = MacAddress.valueOf(dhcpMac);
+        MacAddress dstmac = ethPkt.getDestinationMAC();
+        long now = System.currentTimeMillis();
+
+        DhcpTransactions.Message message = DhcpTransactions.parse(pkt.unparsed());
+        if( message != null ){
+            transactions.observe(message, received);
+        }
+        //copies from the servers' switches, the tree rules forward the packet itself
+        DhcpTreeRules rules = treeRules;
+        if( PacketClassifier.classify(pkt.unparsed()) == PacketClassifier.Kind.DHCP_SERVER ||
+            (rules != null && rules.copies(toHostCP.deviceId())) ){
+            return;
+        }
+
+        //rules towards the server are already on their way
+        PortNumber hop = inFlight.hop(srcmac, dstmac, toHostCP.deviceId(), now);
+        if( hop != null ){
+            packetOut(toHostCP.deviceId(), hop, pkt.unparsed());
+            log.info("[DHCP] In flight: {} {} {}, {} suppressed",
+                     srcmac, hop, toHostCP.deviceId(), inFlight.suppressed());
+            return;
+        }
 
-        Map<DeviceId, List> myGraph = getGraph();
+        DhcpServerSet set = getServerSet();
+        Map<DeviceId, PortNumber> hops = new HashMap<DeviceId, PortNumber>();
+        PathProgrammer.Batch batch = programmer.batch();
 
         //get source device
         Set<Host> findHosts = hostService.getHostsByMac(srcmac);
-        findHosts = hostService.getHostsByMac(srcmac);
         if( findHosts.size()==0 ){
           log.info("[WARN] HostService not find {}",srcmac);
           return;
         }
-        Host firstHost = findHosts.iterator().next();
-        DeviceId sourceDeviceId = firstHost.location().deviceId();
-
-        Map<DeviceId, Link> parentLink = getAllPath(myGraph, sourceDeviceId);
+        ConnectPoint clientCP = findHosts.iterator().next().location();
+        DhcpServerTree tree = set == null ? null : set.treeFor(clientCP.deviceId());
+        if( tree == null ){
+            log.info("[WARN] No path from {} to a DHCP server", clientCP.deviceId());
+            return;
+        }
 
-        //find path
-        if( sourceDeviceId.equals(DeviceId.deviceId(dhcpCPoint.split("/")[0])) ){
-            installDHCPRule(srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), sourceDeviceId);
-            log.info("[DHCP] Install: {} {} {}", srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), sourceDeviceId );
-        }else{
-            Link firstlink = parentLink.get(DeviceId.deviceId(dhcpCPoint.split("/")[0]));
-            ConnectPoint dstCP = firstlink.dst();
-            installDHCPRule(srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), dstCP.deviceId());
-            log.info("[DHCP] Install: {} {} {}", srcmac, PortNumber.portNumber(dhcpCPoint.split("/")[1]), dstCP.deviceId() );
-            while(dstCP.deviceId() != sourceDeviceId){
-              Link linkPath = parentLink.get(dstCP.deviceId());
-              if(linkPath==null) break;
-              //log.info("Path on "+linkPath.src().deviceId().toString() );
-              installDHCPRule(srcmac, linkPath.src().port(), linkPath.src().deviceId());
-              log.info("[DHCP] Install: {} {} {}", srcmac, linkPath.src().port(), linkPath.src().deviceId() );
-              dstCP = linkPath.src();
-          }
+        //walk towards the server, the way the tree rules send requests
+        DeviceId deviceId = clientCP.deviceId();
+        while( !deviceId.equals(tree.root()) ){
+            Link up = set.upLink(deviceId);
+            batch.add(deviceId, dhcpRule(up.src().port()));
+            hops.put(deviceId, up.src().port());
+            deviceId = up.dst().deviceId();
+        }
+        batch.add(deviceId, dhcpRule(tree.server().port()));
+        hops.put(deviceId, tree.server().port());
+
+        //and back from the server
+        deviceId = clientCP.deviceId();
+        batch.add(deviceId, replyRule(srcmac, clientCP.port()));
+        while( !deviceId.equals(tree.root()) ){
+            Link down = tree.downLink(deviceId);
+            batch.add(down.src().deviceId(), replyRule(srcmac, down.src().port()));
+            deviceId = down.src().deviceId();
         }
+        log.info("[DHCP] Install: {} to {} on {} hops",
+                 srcmac, set.serverFor(clientCP.deviceId()), hops.size());
 
-        //inverse
-        srcmac = MacAddress.valueOf(dhcpMac);
-        dstmac = ethPkt.getSourceMAC();
+        inFlight.put(srcmac, dstmac, hops, now);
 
-        //get source device
-        sourceDeviceId = DeviceId.deviceId(dhcpCPoint.split("/")[0]);
-        parentLink = getAllPath(myGraph, sourceDeviceId);
+        batch.submit().whenComplete((nanos, error) -> {
+            if (error != null) {
+                log.info("[WARN] DHCP path of {} failed: {}", srcmac, error.getMessage());
+            } else {
+                log.info("[DHCP] Path of {} set up on {} devices in {} us",
+                         srcmac, batch.deviceCount(), nanos / 1000);
+            }
+        });
+    }
 
-        //find path
-        findHosts = hostService.getHostsByMac(dstmac);
-        firstHost = findHosts.iterator().next();
-        ConnectPoint dstCP = firstHost.location();
-        installRule(srcmac, dstmac, dstCP.port(), dstCP.deviceId());
-        log.info("[DHCP] Install: {} {} {}", srcmac, dstmac, dstCP.port(), dstCP.deviceId() );
-        while(dstCP.deviceId() != sourceDeviceId){
-            //log.info( "Path:  "+dstCP.deviceId().toString() );
-            Link linkPath = parentLink.get(dstCP.deviceId());
-            if(linkPath==null) break;
-            installRule(srcmac, dstmac, linkPath.src().port(), linkPath.src().deviceId());
-            log.info("[DHCP] Install: {} {} {}", srcmac, dstmac, linkPath.src().port(), linkPath.src().deviceId() );
-            dstCP = linkPath.src();
+
+    // paths to the healthy servers, rebuilt on config, topology and server changes
+    private DhcpServerSet getServerSet(){
+        DhcpServerSet set = serverSet;
+        if (set == null || set.snapshot().topology() != topologyService.currentTopology()) {
+            set = rebuildServerSet();
         }
+        return set;
     }
 
-
-    private Map<DeviceId, List> getGraph(){
-        Map<DeviceId, List> myGraph = new HashMap();
-        TopologyGraph currentGraph = topologyService.getGraph(topologyService.currentTopology());
-        Set<TopologyVertex> vertexes = new HashSet<TopologyVertex>(currentGraph.getVertexes());
-        for(TopologyVertex i : vertexes){
-            //log.info("Device:  "+i.deviceId().toString());
-            List vtxlist = new LinkedList<Link>();
-            Set<TopologyEdge> to_edges = currentGraph.getEdgesFrom(i);
-            for(TopologyEdge j : to_edges){
-                vtxlist.add(j.link());
+    private synchronized DhcpServerSet rebuildServerSet(){
+        List<DhcpServer> healthy = new ArrayList<>();
+        for (DhcpServer dhcp : servers) {
+            if (isHealthy(dhcp)) {
+                healthy.add(dhcp);
             }
-            myGraph.put(i.deviceId(), vtxlist);
         }
-        return myGraph;
+        if (healthy.isEmpty()) {
+            log.info("[WARN] None of the DHCP servers {} is up", servers);
+        }
+        DhcpServerSet set = DhcpServerSet.build(getSnapshot(), healthy);
+        serverSet = set;
+        log.info("[DHCP] Servers {}: {} devices reach one, load {}, built in {} us",
+                 healthy, set.reachable(), Arrays.toString(set.load()), set.buildNanos() / 1000);
+        syncTreeRules(set);
+        return set;
     }
 
-    private Map<DeviceId, Link> getAllPath(Map<DeviceId, List> myGraph, DeviceId sourceDeviceId){
-        Map<DeviceId, Integer> distance = new HashMap<DeviceId, Integer>();  //dist
-        Map<DeviceId, Link> parentLink = new HashMap<DeviceId, Link>();      //parent
-        Set<DeviceId> vertexes = myGraph.keySet();
-        for(DeviceId i : vertexes){
-            distance.put(i,Integer.MAX_VALUE);
-            parentLink.put(i,null);
+    // a server is up while its switch is available and its port enabled
+    private boolean isHealthy(DhcpServer dhcp){
+        if (!deviceService.isAvailable(dhcp.deviceId())) {
+            return false;
         }
-        distance.put(sourceDeviceId,0);
-
-        while(!vertexes.isEmpty()){
-            DeviceId minVertex = null;
-            Integer minDistance = Integer.MAX_VALUE;
-            for(DeviceId i : vertexes){
-                if( distance.get(i) <= minDistance ){
-                    minVertex = i;
-                    minDistance = distance.get(i);
-                }
-            }
+        Port port = deviceService.getPort(dhcp.deviceId(), dhcp.port());
+        return port != null && port.isEnabled();
+    }
 
-            List<Link> to_edges = myGraph.get(minVertex);
-            for(Link i : to_edges ){
-                if( minDistance.intValue()+1 < distance.get(i.dst().deviceId()).intValue() ){
-                    distance.put(i.dst().deviceId(), new Integer(minDistance.intValue()+1) );
-                    parentLink.put(i.dst().deviceId(),i);
-                }
+    // reprograms only the devices whose tree rules changed
+    private synchronized void syncTreeRules(DhcpServerSet set){
+        DhcpTreeRules rules = treeRules;
+        if (rules == null || set == null) {
+            return;
+        }
+        DhcpTreeRules.Update update = rules.sync(set, this::edgePorts);
+        if (update.size() == 0) {
+            return;
+        }
+        update.submit().whenComplete((nanos, error) -> {
+            if (error != null) {
+                log.info("[WARN] DHCP tree rules failed: {}", error.getMessage());
+            } else {
+                log.info("[DHCP] Tree rules: {} added, {} removed on {} devices in {} us, " +
+                         "{} added, {} removed in total",
+                         update.adds(), update.removes(), update.deviceCount(), nanos / 1000,
+                         rules.added(), rules.removed());
             }
-            vertexes.remove(minVertex);
+        });
+    }
+
+    private List<PortNumber> edgePorts(DeviceId deviceId){
+        List<PortNumber> ports = new LinkedList<PortNumber>();
+        for (ConnectPoint cp : edgeService.getEdgePoints(deviceId)) {
+            ports.add(cp.port());
+        }
+        return ports;
+    }
+
+    // CSR view of the current topology, rebuilt only when the topology changes
+    private TopologySnapshot getSnapshot(){
+        Topology topology = topologyService.currentTopology();
+        TopologySnapshot graph = snapshot;
+        if (graph == null || graph.topology() != topology) {
+            graph = TopologySnapshot.build(topology, topologyService.getGraph(topology));
+            snapshot = graph;
+            log.info("[TOPO] Snapshot: {} devices, {} links, {} bytes, built in {} us",
+                     graph.deviceCount(), graph.linkCount(), graph.estimatedBytes(),
+                     graph.buildNanos() / 1000);
         }
+        return graph;
+    }
 
-        return parentLink;
+    /** Sends the packet out of a device port */
+    private void packetOut(DeviceId device, PortNumber outPort, ByteBuffer data){
+        TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                    .setOutput(outPort)
+                    .build();
+        packetService.emit(new DefaultOutboundPacket(device, treatment, data));
     }
 
-    /** Sends DHCP flow modify to device */
-    private void installDHCPRule(MacAddress srcMac, 
-                             PortNumber outPort, DeviceId configDeviceId){
+    /** DHCP flow modify of one hop towards the server */
+    private ForwardingObjective.Builder dhcpRule(PortNumber outPort){
         TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
 
         selectorBuilder.matchEthType(Ethernet.TYPE_IPV4)
@@ -395,44 +573,42 @@ public class AppComponent {
                     .setOutput(outPort)
                     .build();
 
-        ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
+        return DefaultForwardingObjective.builder()
                     .withSelector(selectorBuilder.build())
                     .withTreatment(treatment)
                     .withPriority(DEFAULT_PRIORITY)
                     .withFlag(ForwardingObjective.Flag.VERSATILE)
                     .fromApp(appId)
-                    .makeTemporary(DEFAULT_TIMEOUT)
-                    .add();
-
-        flowObjectiveService.forward(configDeviceId,  forwardingObjective);
+                    .makeTemporary(DEFAULT_TIMEOUT);
     }
 
     /** Sends flow modify to device */
     private void installRule(MacAddress srcMac, MacAddress dstMac,
                              PortNumber outPort, DeviceId configDeviceId){
+        flowObjectiveService.forward(configDeviceId, replyRule(dstMac, outPort).add());
+    }
+
+    /** DHCP flow modify of one hop back to the client */
+    private ForwardingObjective.Builder replyRule(MacAddress client, PortNumber outPort){
         TrafficSelector.Builder selectorBuilder = DefaultTrafficSelector.builder();
 
         selectorBuilder.matchEthType(Ethernet.TYPE_IPV4)
+                       .matchEthDst(client)
                        .matchIPProtocol(IPv4.PROTOCOL_UDP)
                        .matchUdpSrc(TpPort.tpPort(UDP.DHCP_SERVER_PORT))
                        .matchUdpDst(TpPort.tpPort(UDP.DHCP_CLIENT_PORT));
-                    //.matchEthSrc(srcMac)
-                    //.matchEthDst(dstMac);
 
         TrafficTreatment treatment = DefaultTrafficTreatment.builder()
                     .setOutput(outPort)
                     .build();
 
-        ForwardingObjective forwardingObjective = DefaultForwardingObjective.builder()
+        return DefaultForwardingObjective.builder()
                     .withSelector(selectorBuilder.build())
                     .withTreatment(treatment)
                     .withPriority(DEFAULT_PRIORITY)
                     .withFlag(ForwardingObjective.Flag.VERSATILE)
                     .fromApp(appId)
-                    .makeTemporary(DEFAULT_TIMEOUT)
-                    .add();
-
-        flowObjectiveService.forward(configDeviceId,  forwardingObjective);
+                    .makeTemporary(DEFAULT_TIMEOUT);
     }
 
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.unicastdhcp;
+
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The healthy DHCP servers and the server each device is steered to.
+ *
+ * Every server has its own tree. A device goes to a hop-nearest server,
+ * through one of its next hops towards the nearest servers, and takes the
+ * server that next hop is steered to. Devices are steered nearest first,
+ * so the next hops have theirs already; among several, the server is
+ * picked by rendezvous hashing of device and server, so ties spread over
+ * the servers and a device only moves when its own server comes or goes.
+ *
+ * Every device a request is forwarded through is thus steered to the
+ * server of the client's edge, and the reply comes back from that server.
+ * A device none of whose next hops leads to a server with a path back to
+ * it is steered nowhere.
+ */
+public final class DhcpServerSet {
+
+    private final TopologySnapshot snapshot;
+    private final List<DhcpServer> servers;
+    private final List<DhcpServerTree> trees;
+    private final int[] choice;
+    private final Link[] upLinks;
+    private final int reachable;
+    private final long buildNanos;
+
+    private DhcpServerSet(TopologySnapshot snapshot, List<DhcpServer> servers){
+        long start = System.nanoTime();
+        this.snapshot = snapshot;
+        this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+
+        List<DhcpServerTree> built = new ArrayList<>(servers.size());
+        for (DhcpServer server : servers) {
+            built.add(DhcpServerTree.build(snapshot, server.connectPoint()));
+        }
+        this.trees = Collections.unmodifiableList(built);
+
+        int n = snapshot.deviceCount();
+        int[] nearest = new int[n];
+        Integer[] order = new Integer[n];
+        for (int v = 0; v < n; v++) {
+            DeviceId deviceId = snapshot.device(v);
+            nearest[v] = Integer.MAX_VALUE;
+            for (DhcpServerTree tree : built) {
+                if (tree.reaches(deviceId)) {
+                    nearest[v] = Math.min(nearest[v], tree.distance(deviceId));
+                }
+            }
+            order[v] = v;
+        }
+        Arrays.sort(order, Comparator.comparingInt(v -> nearest[v]));
+
+        PathEngine engine = new PathEngine(snapshot);
+        choice = new int[n];
+        upLinks = new Link[n];
+        Arrays.fill(choice, -1);
+        int count = 0;
+        for (int v : order) {
+            if (nearest[v] == Integer.MAX_VALUE) {
+                break;
+            }
+            DeviceId deviceId = snapshot.device(v);
+            int best = -1;
+            long bestScore = 0;
+            if (nearest[v] == 0) {
+                for (int s = 0; s < built.size(); s++) {
+                    if (built.get(s).root().equals(deviceId)) {
+                        long score = score(deviceId, servers.get(s));
+                        if (best < 0 || score > bestScore) {
+                            best = s;
+                            bestScore = score;
+                        }
+                    }
+                }
+            } else {
+                for (Link link : engine.nextHops(nearest, deviceId)) {
+                    int s = indexFor(link.dst().deviceId());
+                    if (s < 0 || !built.get(s).reaches(deviceId)) {
+                        continue;
+                    }
+                    long score = score(deviceId, servers.get(s));
+                    if (best < 0 || score > bestScore) {
+                        best = s;
+                        bestScore = score;
+                        upLinks[v] = link;
+                    }
+                }
+            }
+            choice[v] = best;
+            if (best >= 0) {
+                count++;
+            }
+        }
+        reachable = count;
+        buildNanos = System.nanoTime() - start;
+    }
+
+    /** Builds the trees of the servers over a snapshot. */
+    public static DhcpServerSet build(TopologySnapshot snapshot, List<DhcpServer> servers){
+        return new DhcpServerSet(snapshot, servers);
+    }
+
+    public TopologySnapshot snapshot(){
+        return snapshot;
+    }
+
+    public List<DhcpServer> servers(){
+        return servers;
+    }
+
+    public List<DhcpServerTree> trees(){
+        return trees;
+    }
+
+    /** Server the device is steered to, null if it reaches none. */
+    public DhcpServer serverFor(DeviceId deviceId){
+        int s = indexFor(deviceId);
+        return s < 0 ? null : servers.get(s);
+    }
+
+    /** Tree of the server the device is steered to, null if it reaches none. */
+    public DhcpServerTree treeFor(DeviceId deviceId){
+        int s = indexFor(deviceId);
+        return s < 0 ? null : trees.get(s);
+    }
+
+    /** Link leaving the device towards its server, null at the server's device. */
+    public Link upLink(DeviceId deviceId){
+        int v = snapshot.indexOf(deviceId);
+        return v < 0 ? null : upLinks[v];
+    }
+
+    /** Output port of the device towards its server, null if it is steered nowhere. */
+    public PortNumber upstream(DeviceId deviceId){
+        DhcpServer server = serverFor(deviceId);
+        if (server == null) {
+            return null;
+        }
+        if (server.deviceId().equals(deviceId)) {
+            return server.port();
+        }
+        return upLinks[snapshot.indexOf(deviceId)].src().port();
+    }
+
+    /** Devices steered to a server. */
+    public int reachable(){
+        return reachable;
+    }
+
+    /** Devices steered to each server, in server order. */
+    public int[] load(){
+        int[] load = new int[servers.size()];
+        for (int s : choice) {
+            if (s >= 0) {
+                load[s]++;
+            }
+        }
+        return load;
+    }
+
+    public long buildNanos(){
+        return buildNanos;
+    }
+
+    private int indexFor(DeviceId deviceId){
+        int v = snapshot.indexOf(deviceId);
+        return v < 0 ? -1 : choice[v];
+    }
+
+    // splitmix64 of the pair, the highest score wins
+    private static long score(DeviceId deviceId, DhcpServer server){
+        long z = deviceId.toString().hashCode() * 0x9e3779b97f4a7c15L + server.mac().toLong();
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
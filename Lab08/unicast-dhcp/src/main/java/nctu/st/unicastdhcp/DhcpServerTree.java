@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.unicastdhcp;
+
+import nctu.st.common.PathEngine;
+import nctu.st.common.TopologySnapshot;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+
+/**
+ * Shortest paths between every device and the DHCP server.
+ *
+ * Built once per topology snapshot and server connect point. Each device
+ * keeps the link it leaves by towards the server and the link it is
+ * reached by from the server, so a client's path in either direction is a
+ * walk of parent links from its edge device to the root.
+ */
+public final class DhcpServerTree {
+
+    private final TopologySnapshot snapshot;
+    private final ConnectPoint server;
+    private final Link[] upLinks;
+    private final Link[] downLinks;
+    private final int[] distances;
+    private final int reachable;
+    private final long buildNanos;
+
+    private DhcpServerTree(TopologySnapshot snapshot, ConnectPoint server){
+        long start = System.nanoTime();
+        this.snapshot = snapshot;
+        this.server = server;
+
+        int n = snapshot.deviceCount();
+        upLinks = new Link[n];
+        downLinks = new Link[n];
+        distances = new int[n];
+        PathEngine engine = new PathEngine(snapshot);
+        PathEngine.Tree up = engine.shortestPathsTo(server.deviceId());
+        PathEngine.Tree down = engine.shortestPaths(server.deviceId());
+        int count = 0;
+        for (int v = 0; v < n; v++) {
+            DeviceId deviceId = snapshot.device(v);
+            upLinks[v] = up.parentLink(deviceId);
+            downLinks[v] = down.parentLink(deviceId);
+            distances[v] = up.distance(deviceId);
+            if (deviceId.equals(server.deviceId()) ||
+                (upLinks[v] != null && downLinks[v] != null)) {
+                count++;
+            }
+        }
+        reachable = count;
+        buildNanos = System.nanoTime() - start;
+    }
+
+    /** Builds the tree of the server over a snapshot. */
+    public static DhcpServerTree build(TopologySnapshot snapshot, ConnectPoint server){
+        return new DhcpServerTree(snapshot, server);
+    }
+
+    public TopologySnapshot snapshot(){
+        return snapshot;
+    }
+
+    public ConnectPoint server(){
+        return server;
+    }
+
+    public DeviceId root(){
+        return server.deviceId();
+    }
+
+    /** Whether the device has a path to the server and back. */
+    public boolean reaches(DeviceId deviceId){
+        if (deviceId.equals(server.deviceId())) {
+            return snapshot.indexOf(deviceId) >= 0;
+        }
+        int v = snapshot.indexOf(deviceId);
+        return v >= 0 && upLinks[v] != null && downLinks[v] != null;
+    }
+
+    /** Hops from the device to the server, Integer.MAX_VALUE if unreachable. */
+    public int distance(DeviceId deviceId){
+        int v = snapshot.indexOf(deviceId);
+        return v < 0 ? Integer.MAX_VALUE : distances[v];
+    }
+
+    /** Link leaving the device towards the server, null at the root. */
+    public Link upLink(DeviceId deviceId){
+        int v = snapshot.indexOf(deviceId);
+        return v < 0 ? null : upLinks[v];
+    }
+
+    /** Link into the device from the server, null at the root. */
+    public Link downLink(DeviceId deviceId){
+        int v = snapshot.indexOf(deviceId);
+        return v < 0 ? null : downLinks[v];
+    }
+
+    /** Output port of the device towards the server. */
+    public PortNumber upstream(DeviceId deviceId){
+        if (deviceId.equals(server.deviceId())) {
+            return server.port();
+        }
+        Link link = upLink(deviceId);
+        return link == null ? null : link.src().port();
+    }
+
+    /** Devices with a path to the server, the root included. */
+    public int reachable(){
+        return reachable;
+    }
+
+    public long buildNanos(){
+        return buildNanos;
+    }
+}
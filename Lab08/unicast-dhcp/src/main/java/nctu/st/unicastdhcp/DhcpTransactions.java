@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.unicastdhcp;
+
+import nctu.st.common.Histogram;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DHCP transactions in progress and the latency of finished ones.
+ *
+ * Messages are keyed by client hardware address and transaction id. The
+ * time from DISCOVER to OFFER and from REQUEST to ACK is spent in the
+ * server and the network, OFFER to REQUEST in the client; the time the
+ * controller spends on a packet is recorded separately. The table keeps
+ * at most a fixed number of open transactions, dropping the oldest.
+ *
+ * Messages may be observed out of order, an OFFER before its DISCOVER
+ * when they were handled on different threads; each phase is recorded
+ * once both of its ends were seen, from the times they were received.
+ */
+public class DhcpTransactions {
+
+    /** DHCP message types of option 53. */
+    public static final int DISCOVER = 1;
+    public static final int OFFER = 2;
+    public static final int REQUEST = 3;
+    public static final int ACK = 5;
+    public static final int NAK = 6;
+
+    /** Latencies kept, in microseconds. */
+    public enum Phase {
+        // discover to offer
+        OFFER,
+        // offer to request
+        CLIENT,
+        // request to ack
+        ACK,
+        // discover to ack
+        TOTAL,
+        // handling of one packet-in
+        CONTROLLER
+    }
+
+    // offsets into the DHCP message
+    private static final int XID = 4;
+    private static final int CHADDR = 28;
+    private static final int COOKIE = 236;
+    private static final int OPTIONS = 240;
+    private static final int MAGIC_COOKIE = 0x63825363;
+    private static final int OPTION_PAD = 0;
+    private static final int OPTION_END = 255;
+    private static final int OPTION_MESSAGE_TYPE = 53;
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Transaction> open;
+    private final Histogram[] latency = new Histogram[Phase.values().length];
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong naks = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** One parsed DHCP message. */
+    public static final class Message {
+        private final long client;
+        private final int xid;
+        private final int type;
+
+        private Message(long client, int xid, int type){
+            this.client = client;
+            this.xid = xid;
+            this.type = type;
+        }
+
+        public long client(){
+            return client;
+        }
+
+        public int xid(){
+            return xid;
+        }
+
+        public int type(){
+            return type;
+        }
+    }
+
+    private static final class Key {
+        private final long client;
+        private final int xid;
+
+        private Key(long client, int xid){
+            this.client = client;
+            this.xid = xid;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return client == other.client && xid == other.xid;
+        }
+
+        @Override
+        public int hashCode(){
+            return Long.hashCode(client * 31 + xid);
+        }
+    }
+
+    private static final class Transaction {
+        private long discover;
+        private long offer;
+        private long request;
+    }
+
+    public DhcpTransactions(int capacity){
+        this.capacity = capacity;
+        this.open = new LinkedHashMap<Key, Transaction>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Transaction> eldest){
+                if (size() > DhcpTransactions.this.capacity) {
+                    dropped.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Client hardware address of the DHCP message of an Ethernet frame
+     * carrying IPv4/UDP, -1 if the frame is too short to hold one.
+     */
+    public static long client(ByteBuffer buf){
+        int udp = PacketClassifier.l4Offset(buf);
+        if (udp < 0 || buf.limit() < udp + 8 + CHADDR + 6) {
+            return -1;
+        }
+        int chaddr = udp + 8 + CHADDR;
+        return ((buf.getShort(chaddr) & 0xffffL) << 32) | (buf.getInt(chaddr + 2) & 0xffffffffL);
+    }
+
+    /**
+     * Reads the DHCP message of an Ethernet frame carrying IPv4/UDP, null
+     * if the frame is too short or the message has no type.
+     */
+    public static Message parse(ByteBuffer buf){
+        int limit = buf.limit();
+        int udp = PacketClassifier.l4Offset(buf);
+        if (udp < 0) {
+            return null;
+        }
+        int dhcp = udp + 8;
+        if (limit < dhcp + OPTIONS || buf.getInt(dhcp + COOKIE) != MAGIC_COOKIE) {
+            return null;
+        }
+        int xid = buf.getInt(dhcp + XID);
+        long client = ((buf.getShort(dhcp + CHADDR) & 0xffffL) << 32) |
+                      (buf.getInt(dhcp + CHADDR + 2) & 0xffffffffL);
+
+        int i = dhcp + OPTIONS;
+        while (i < limit) {
+            int code = buf.get(i) & 0xff;
+            if (code == OPTION_END) {
+                break;
+            }
+            if (code == OPTION_PAD) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= limit) {
+                break;
+            }
+            int length = buf.get(i + 1) & 0xff;
+            if (code == OPTION_MESSAGE_TYPE && length >= 1 && i + 2 < limit) {
+                return new Message(client, xid, buf.get(i + 2) & 0xff);
+            }
+            i += 2 + length;
+        }
+        return null;
+    }
+
+    /** Accounts one message received at the given System.nanoTime(). */
+    public synchronized void observe(Message message, long now){
+        Key key = new Key(message.client(), message.xid());
+        Transaction t;
+        switch (message.type()) {
+            case DISCOVER:
+                t = open.computeIfAbsent(key, k -> new Transaction());
+                if (t.discover == 0) {
+                    t.discover = now;
+                    if (t.offer != 0) {
+                        record(Phase.OFFER, t.offer - now);
+                    }
+                } else if (now < t.discover) {
+                    // retransmitted, the transaction started with the first one
+                    t.discover = now;
+                }
+                break;
+            case OFFER:
+                t = open.computeIfAbsent(key, k -> new Transaction());
+                if (t.offer == 0) {
+                    t.offer = now;
+                    if (t.discover != 0) {
+                        record(Phase.OFFER, now - t.discover);
+                    }
+                    if (t.request != 0) {
+                        record(Phase.CLIENT, t.request - now);
+                    }
+                }
+                break;
+            case REQUEST:
+                // a renewal starts its transaction with the request
+                t = open.computeIfAbsent(key, k -> new Transaction());
+                if (t.request == 0) {
+                    t.request = now;
+                    if (t.offer != 0) {
+                        record(Phase.CLIENT, now - t.offer);
+                    }
+                }
+                break;
+            case ACK:
+                t = open.remove(key);
+                if (t != null && t.request != 0) {
+                    record(Phase.ACK, now - t.request);
+                    if (t.discover != 0) {
+                        record(Phase.TOTAL, now - t.discover);
+                    }
+                    completed.incrementAndGet();
+                }
+                break;
+            case NAK:
+                if (open.remove(key) != null) {
+                    naks.incrementAndGet();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Time the controller spent handling one packet. */
+    public void recordProcessing(long nanos){
+        record(Phase.CONTROLLER, nanos);
+    }
+
+    /** Upper bound of the phase's latency quantile, in microseconds. */
+    public long percentile(Phase phase, double q){
+        return latency[phase.ordinal()].percentile(q);
+    }
+
+    public synchronized int openCount(){
+        return open.size();
+    }
+
+    public long completed(){
+        return completed.get();
+    }
+
+    public long naks(){
+        return naks.get();
+    }
+
+    /** Open transactions dropped to stay within the capacity. */
+    public long dropped(){
+        return dropped.get();
+    }
+
+    public synchronized void clear(){
+        open.clear();
+    }
+
+    private void record(Phase phase, long nanos){
+        latency[phase.ordinal()].record(nanos);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.unicastdhcp;
+
+import org.apache.karaf.shell.commands.Command;
+import org.onosproject.cli.AbstractShellCommand;
+
+/**
+ * Shows DHCP lease latency percentiles.
+ */
+@Command(scope = "onos", name = "dhcp-transactions",
+         description = "Shows DHCP lease latency percentiles")
+public class DhcpTransactionsCommand extends AbstractShellCommand {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    @Override
+    protected void execute(){
+        DhcpTransactions transactions = get(DhcpTransactionService.class).transactions();
+        print("open=%d, completed=%d, nak=%d, dropped=%d",
+              transactions.openCount(), transactions.completed(),
+              transactions.naks(), transactions.dropped());
+        for (DhcpTransactions.Phase phase : DhcpTransactions.Phase.values()) {
+            print("%-10s p50<=%dus, p90<=%dus, p99<=%dus", phase.name().toLowerCase(),
+                  transactions.percentile(phase, QUANTILES[0]),
+                  transactions.percentile(phase, QUANTILES[1]),
+                  transactions.percentile(phase, QUANTILES[2]));
+        }
+    }
+}
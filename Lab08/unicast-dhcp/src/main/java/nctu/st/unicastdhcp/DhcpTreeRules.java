@@ -0,0 +1,287 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.unicastdhcp;
+
+import nctu.st.common.TopologySnapshot;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onlab.packet.UDP;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Permanent DHCP rules of the server trees.
+ *
+ * Every device that reaches a server gets one rule sending client packets
+ * (UDP 68 to 67) towards the server it is steered to, which is the server
+ * of every device further up. Replies (UDP
+ * 67 to 68) follow one rule per device and server, matching the server's
+ * MAC as source, down its tree to the edge ports of the devices steered to
+ * it, so each edge port gets the replies of one server only. Clients are
+ * then served without packet-ins. On a change only the rules whose ports
+ * differ are reprogrammed.
+ *
+ * When tracking, the rules at each server's own device also copy the
+ * packets to the controller, so every message of a transaction is seen
+ * exactly once.
+ */
+public class DhcpTreeRules {
+
+    private static final Comparator<PortNumber> PORT_ORDER =
+        (a, b) -> Long.compare(a.toLong(), b.toLong());
+
+    private final ApplicationId appId;
+    private final PathProgrammer programmer;
+    private final int priority;
+    private final boolean track;
+
+    private final Map<DeviceId, Set<PortNumber>> upRules = new HashMap<>();
+    // server MAC to ports down its tree, per device
+    private final Map<DeviceId, Map<MacAddress, Set<PortNumber>>> downRules = new HashMap<>();
+
+    private long added;
+    private long removed;
+
+    /** Rule changes to submit as one batch. */
+    public final class Update {
+        private final PathProgrammer.Batch batch = programmer.batch();
+        private int adds;
+        private int removes;
+
+        private Update(){
+        }
+
+        public int size(){
+            return batch.size();
+        }
+
+        public int adds(){
+            return adds;
+        }
+
+        public int removes(){
+            return removes;
+        }
+
+        public int deviceCount(){
+            return batch.deviceCount();
+        }
+
+        public CompletableFuture<Long> submit(){
+            return batch.submit();
+        }
+    }
+
+    public DhcpTreeRules(ApplicationId appId, PathProgrammer programmer, int priority, boolean track){
+        this.appId = appId;
+        this.programmer = programmer;
+        this.priority = priority;
+        this.track = track;
+    }
+
+    /**
+     * Brings the rules in line with the servers and returns the changes to
+     * submit, empty if nothing changed.
+     */
+    public synchronized Update sync(DhcpServerSet set, Function<DeviceId, Iterable<PortNumber>> edgePorts){
+        Map<DeviceId, Set<PortNumber>> up = new HashMap<>();
+        Map<DeviceId, Map<MacAddress, Set<PortNumber>>> down = new HashMap<>();
+        if (set != null) {
+            TopologySnapshot snapshot = set.snapshot();
+            Set<ConnectPoint> serverPoints = new HashSet<>();
+            for (DhcpServer server : set.servers()) {
+                serverPoints.add(server.connectPoint());
+            }
+            for (int v = 0; v < snapshot.deviceCount(); v++) {
+                DeviceId deviceId = snapshot.device(v);
+                DhcpServerTree tree = set.treeFor(deviceId);
+                if (tree == null) {
+                    continue;
+                }
+                Set<PortNumber> upPorts = ports(set.upstream(deviceId));
+                if (track && deviceId.equals(tree.root())) {
+                    upPorts.add(PortNumber.CONTROLLER);
+                }
+                up.put(deviceId, upPorts);
+
+                // the replies of its server come down to its hosts
+                MacAddress mac = set.serverFor(deviceId).mac();
+                Set<PortNumber> hostPorts = new TreeSet<>(PORT_ORDER);
+                for (PortNumber port : edgePorts.apply(deviceId)) {
+                    if (!serverPoints.contains(new ConnectPoint(deviceId, port))) {
+                        hostPorts.add(port);
+                    }
+                }
+                if (hostPorts.isEmpty()) {
+                    continue;
+                }
+                ports(down, deviceId, mac).addAll(hostPorts);
+                // up to where the branch joins the part of the tree already added
+                while (!deviceId.equals(tree.root())) {
+                    Link link = tree.downLink(deviceId);
+                    deviceId = link.src().deviceId();
+                    boolean joined = down.containsKey(deviceId) && down.get(deviceId).containsKey(mac);
+                    ports(down, deviceId, mac).add(link.src().port());
+                    if (joined) {
+                        break;
+                    }
+                }
+            }
+            if (track) {
+                for (int s = 0; s < set.servers().size(); s++) {
+                    MacAddress mac = set.servers().get(s).mac();
+                    DeviceId root = set.trees().get(s).root();
+                    if (down.containsKey(root) && down.get(root).containsKey(mac)) {
+                        down.get(root).get(mac).add(PortNumber.CONTROLLER);
+                    }
+                }
+            }
+        }
+
+        Update update = new Update();
+        for (Map.Entry<DeviceId, Set<PortNumber>> rule : upRules.entrySet()) {
+            if (!rule.getValue().equals(up.get(rule.getKey()))) {
+                update.batch.remove(rule.getKey(), upRule(rule.getValue()));
+                update.removes++;
+            }
+        }
+        for (Map.Entry<DeviceId, Set<PortNumber>> rule : up.entrySet()) {
+            if (!rule.getValue().equals(upRules.get(rule.getKey()))) {
+                update.batch.add(rule.getKey(), upRule(rule.getValue()));
+                update.adds++;
+            }
+        }
+        for (Map.Entry<DeviceId, Map<MacAddress, Set<PortNumber>>> device : downRules.entrySet()) {
+            Map<MacAddress, Set<PortNumber>> next =
+                down.getOrDefault(device.getKey(), Collections.emptyMap());
+            for (Map.Entry<MacAddress, Set<PortNumber>> rule : device.getValue().entrySet()) {
+                if (!rule.getValue().equals(next.get(rule.getKey()))) {
+                    update.batch.remove(device.getKey(), downRule(rule.getKey(), rule.getValue()));
+                    update.removes++;
+                }
+            }
+        }
+        for (Map.Entry<DeviceId, Map<MacAddress, Set<PortNumber>>> device : down.entrySet()) {
+            Map<MacAddress, Set<PortNumber>> last =
+                downRules.getOrDefault(device.getKey(), Collections.emptyMap());
+            for (Map.Entry<MacAddress, Set<PortNumber>> rule : device.getValue().entrySet()) {
+                if (!rule.getValue().equals(last.get(rule.getKey()))) {
+                    update.batch.add(device.getKey(), downRule(rule.getKey(), rule.getValue()));
+                    update.adds++;
+                }
+            }
+        }
+
+        upRules.clear();
+        upRules.putAll(up);
+        downRules.clear();
+        downRules.putAll(down);
+        added += update.adds;
+        removed += update.removes;
+        return update;
+    }
+
+    /** Removes every rule. */
+    public Update clear(){
+        return sync(null, deviceId -> Collections.<PortNumber>emptyList());
+    }
+
+    /** Whether the rules at the device copy client packets to the controller. */
+    public synchronized boolean copies(DeviceId deviceId){
+        Set<PortNumber> ports = upRules.get(deviceId);
+        return ports != null && ports.contains(PortNumber.CONTROLLER);
+    }
+
+    public synchronized int deviceCount(){
+        return upRules.size();
+    }
+
+    /** Rules added and removed since creation. */
+    public synchronized long added(){
+        return added;
+    }
+
+    public synchronized long removed(){
+        return removed;
+    }
+
+    private static Set<PortNumber> ports(PortNumber... outPorts){
+        Set<PortNumber> ports = new TreeSet<>(PORT_ORDER);
+        Collections.addAll(ports, outPorts);
+        return ports;
+    }
+
+    private static Set<PortNumber> ports(Map<DeviceId, Map<MacAddress, Set<PortNumber>>> rules,
+                                         DeviceId deviceId, MacAddress mac){
+        return rules.computeIfAbsent(deviceId, k -> new HashMap<>())
+                    .computeIfAbsent(mac, k -> new TreeSet<>(PORT_ORDER));
+    }
+
+    private ForwardingObjective.Builder upRule(Set<PortNumber> outPorts){
+        return rule(DefaultTrafficSelector.builder()
+                        .matchEthType(Ethernet.TYPE_IPV4)
+                        .matchIPProtocol(IPv4.PROTOCOL_UDP)
+                        .matchUdpSrc(TpPort.tpPort(UDP.DHCP_CLIENT_PORT))
+                        .matchUdpDst(TpPort.tpPort(UDP.DHCP_SERVER_PORT)),
+                    outPorts);
+    }
+
+    private ForwardingObjective.Builder downRule(MacAddress server, Set<PortNumber> outPorts){
+        return rule(DefaultTrafficSelector.builder()
+                        .matchEthType(Ethernet.TYPE_IPV4)
+                        .matchEthSrc(server)
+                        .matchIPProtocol(IPv4.PROTOCOL_UDP)
+                        .matchUdpSrc(TpPort.tpPort(UDP.DHCP_SERVER_PORT))
+                        .matchUdpDst(TpPort.tpPort(UDP.DHCP_CLIENT_PORT)),
+                    outPorts);
+    }
+
+    private ForwardingObjective.Builder rule(TrafficSelector.Builder selector, Set<PortNumber> outPorts){
+        TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder();
+        for (PortNumber port : outPorts) {
+            treatment.setOutput(port);
+        }
+        return DefaultForwardingObjective.builder()
+                    .withSelector(selector.build())
+                    .withTreatment(treatment.build())
+                    .withPriority(priority)
+                    .withFlag(ForwardingObjective.Flag.VERSATILE)
+                    .fromApp(appId)
+                    .makePermanent();
+    }
+}
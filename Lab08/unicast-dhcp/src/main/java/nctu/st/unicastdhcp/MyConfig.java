@@ -15,10 +15,15 @@
  */
 package nctu.st.unicastdhcp;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.config.Config;
 import org.onosproject.net.config.basics.BasicElementConfig;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * My Config class.
@@ -29,12 +34,15 @@ public class MyConfig extends Config<ApplicationId>{
     public static final String MY_NAME = "name";
     public static final String DHCP_MAC = "mac";
     public static final String DHCP_CPoint = "deviceConnectPoint";
+    // Or a list of servers, each with "mac" and "deviceConnectPoint".
+    public static final String SERVERS = "servers";
 
     // For ONOS to check whether an uploaded configuration is valid.
     @Override
     public boolean isValid(){
-        boolean vmac = get(DHCP_MAC, null).matches("^([0-9A-Fa-f]{2}[:-]){5}([0-9A-Fa-f]{2})$");
-        return hasOnlyFields(MY_NAME, DHCP_MAC, DHCP_CPoint) & vmac;
+        List<DhcpServer> servers = getServers();
+        return hasOnlyFields(MY_NAME, DHCP_MAC, DHCP_CPoint, SERVERS) &&
+               servers != null && !servers.isEmpty();
     }
 
     // To retreat the value.
@@ -55,6 +63,34 @@ public class MyConfig extends Config<ApplicationId>{
         return dhcpCP;
     }
 
+    // Typed server, null if a field is missing or malformed.
+    public DhcpServer getServer(){
+        try {
+            return DhcpServer.parse(getCPoint(), getMAC());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Every configured server, null if one of them is malformed.
+    public List<DhcpServer> getServers(){
+        List<DhcpServer> servers = new ArrayList<>();
+        JsonNode list = object.path(SERVERS);
+        try {
+            if (list.isArray()) {
+                for (JsonNode server : list) {
+                    servers.add(DhcpServer.parse(server.path(DHCP_CPoint).asText(null),
+                                                 server.path(DHCP_MAC).asText(null)));
+                }
+            } else if (getCPoint() != null || getMAC() != null) {
+                servers.add(DhcpServer.parse(getCPoint(), getMAC()));
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return servers;
+    }
+
     // To set or clear the value.
     public BasicElementConfig myname(String name){
         return (BasicElementConfig) setOrClear(MY_NAME, name);
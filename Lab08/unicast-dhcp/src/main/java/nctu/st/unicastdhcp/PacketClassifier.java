@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.unicastdhcp;
+
+import org.onosproject.net.packet.PacketContext;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Classifies packet-ins from the raw frame and hands them to a handler.
+ *
+ * Ethertype, IP protocol and UDP ports are read at fixed offsets of
+ * InboundPacket.unparsed() with absolute gets, so no payload objects,
+ * addresses or buffers are created on the dispatch thread. Handlers that
+ * need the whole packet still call parsed().
+ */
+public final class PacketClassifier {
+
+    /** Traffic classes packets are dispatched on. */
+    public enum Kind {
+        // LLDP and BDDP
+        CONTROL,
+        ARP,
+        // UDP 68 to 67
+        DHCP_CLIENT,
+        // UDP 67 to 68
+        DHCP_SERVER,
+        IPV4,
+        OTHER
+    }
+
+    /** Handles packets of one kind. */
+    public interface Handler {
+        void handle(PacketContext context);
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private static final int ETH_TYPE = 12;
+    private static final int ETH_HEADER = 14;
+    private static final int VLAN_HEADER = 4;
+    private static final int TYPE_VLAN = 0x8100;
+    private static final int TYPE_IPV4 = 0x0800;
+    private static final int TYPE_ARP = 0x0806;
+    private static final int TYPE_LLDP = 0x88cc;
+    private static final int TYPE_BSN = 0x8942;
+    private static final int IP_HEADER = 20;
+    private static final int IP_FRAGMENT = 6;
+    private static final int IP_PROTOCOL = 9;
+    private static final int IP_SRC = 12;
+    private static final int IP_DST = 16;
+    private static final int PROTOCOL_UDP = 17;
+    private static final int DHCP_SERVER_PORT = 67;
+    private static final int DHCP_CLIENT_PORT = 68;
+
+    private final Handler[] handlers = new Handler[KINDS.length];
+
+    /** Sends packets of the kind to the handler. */
+    public PacketClassifier on(Kind kind, Handler handler){
+        handlers[kind.ordinal()] = handler;
+        return this;
+    }
+
+    /**
+     * Hands the packet to the handler of its kind. Returns false if the
+     * kind has no handler.
+     */
+    public boolean dispatch(PacketContext context){
+        Handler handler = handlers[classify(context.inPacket().unparsed()).ordinal()];
+        if (handler == null) {
+            return false;
+        }
+        handler.handle(context);
+        return true;
+    }
+
+    public static Kind classify(ByteBuffer frame){
+        switch (etherType(frame)) {
+            case TYPE_LLDP:
+            case TYPE_BSN:
+                return Kind.CONTROL;
+            case TYPE_ARP:
+                return Kind.ARP;
+            case TYPE_IPV4:
+                break;
+            default:
+                return Kind.OTHER;
+        }
+        int l3 = l3Offset(frame);
+        if (frame.limit() < l3 + IP_HEADER) {
+            return Kind.OTHER;
+        }
+        int l4 = l4Offset(frame);
+        if (l4 < 0 || (frame.get(l3 + IP_PROTOCOL) & 0xff) != PROTOCOL_UDP) {
+            return Kind.IPV4;
+        }
+        int src = frame.getShort(l4) & 0xffff;
+        int dst = frame.getShort(l4 + 2) & 0xffff;
+        if (src == DHCP_CLIENT_PORT && dst == DHCP_SERVER_PORT) {
+            return Kind.DHCP_CLIENT;
+        }
+        if (src == DHCP_SERVER_PORT && dst == DHCP_CLIENT_PORT) {
+            return Kind.DHCP_SERVER;
+        }
+        return Kind.IPV4;
+    }
+
+    /** Ethertype behind an optional VLAN tag, -1 if the frame is too short. */
+    public static int etherType(ByteBuffer frame){
+        int base = frame.position();
+        if (frame.limit() < base + ETH_HEADER) {
+            return -1;
+        }
+        int type = frame.getShort(base + ETH_TYPE) & 0xffff;
+        if (type != TYPE_VLAN) {
+            return type;
+        }
+        if (frame.limit() < base + ETH_HEADER + VLAN_HEADER) {
+            return -1;
+        }
+        return frame.getShort(base + ETH_TYPE + VLAN_HEADER) & 0xffff;
+    }
+
+    public static long srcMac(ByteBuffer frame){
+        return mac(frame, frame.position() + 6);
+    }
+
+    public static long dstMac(ByteBuffer frame){
+        return mac(frame, frame.position());
+    }
+
+    public static boolean isBroadcast(ByteBuffer frame){
+        int base = frame.position();
+        return frame.getInt(base) == -1 && frame.getShort(base + 4) == -1;
+    }
+
+    /** IPv4 source address, only meaningful when the ethertype is IPv4. */
+    public static int ipv4Src(ByteBuffer frame){
+        return frame.getInt(l3Offset(frame) + IP_SRC);
+    }
+
+    public static int ipv4Dst(ByteBuffer frame){
+        return frame.getInt(l3Offset(frame) + IP_DST);
+    }
+
+    /** Offset of the IPv4 header, past the Ethernet and VLAN headers. */
+    public static int l3Offset(ByteBuffer frame){
+        int base = frame.position();
+        if (frame.limit() >= base + ETH_HEADER &&
+            (frame.getShort(base + ETH_TYPE) & 0xffff) == TYPE_VLAN) {
+            return base + ETH_HEADER + VLAN_HEADER;
+        }
+        return base + ETH_HEADER;
+    }
+
+    /**
+     * Offset of the transport header of an IPv4 frame, -1 if the frame is
+     * too short or a non-first fragment.
+     */
+    public static int l4Offset(ByteBuffer frame){
+        int l3 = l3Offset(frame);
+        if (frame.limit() < l3 + IP_HEADER) {
+            return -1;
+        }
+        if ((frame.getShort(l3 + IP_FRAGMENT) & 0x1fff) != 0) {
+            return -1;
+        }
+        int l4 = l3 + (frame.get(l3) & 0x0f) * 4;
+        return frame.limit() < l4 + 4 ? -1 : l4;
+    }
+
+    private static long mac(ByteBuffer frame, int offset){
+        return ((frame.getShort(offset) & 0xffffL) << 32) | (frame.getInt(offset + 2) & 0xffffffffL);
+    }
+}
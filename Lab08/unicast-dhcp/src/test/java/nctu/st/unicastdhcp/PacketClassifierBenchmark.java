@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.unicastdhcp;
+
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.UDP;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifying a DHCP DISCOVER from the raw frame against deserializing it
+ * and casting down to the UDP header, as the processor used to.
+ * Not run by the tests, start main() from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketClassifierBenchmark {
+
+    private byte[] data;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp(){
+        data = discover();
+        frame = ByteBuffer.wrap(data);
+    }
+
+    @Benchmark
+    public PacketClassifier.Kind classify(){
+        return PacketClassifier.classify(frame);
+    }
+
+    @Benchmark
+    public boolean deserialize() throws DeserializationException {
+        Ethernet ethPkt = Ethernet.deserializer().deserialize(data, 0, data.length);
+        if (ethPkt.getEtherType() != Ethernet.TYPE_IPV4) {
+            return false;
+        }
+        IPv4 ip4Payload = (IPv4) ethPkt.getPayload();
+        if (ip4Payload.getProtocol() != IPv4.PROTOCOL_UDP) {
+            return false;
+        }
+        return ((UDP) ip4Payload.getPayload()).getSourcePort() == UDP.DHCP_CLIENT_PORT;
+    }
+
+    // broadcast DISCOVER from 00:00:00:00:00:01 with only option 53
+    private static byte[] discover(){
+        int dhcpLength = 240 + 3 + 1;
+        ByteBuffer b = ByteBuffer.allocate(14 + 20 + 8 + dhcpLength);
+        b.put(new byte[] {-1, -1, -1, -1, -1, -1, 0, 0, 0, 0, 0, 1});
+        b.putShort(Ethernet.TYPE_IPV4);
+        b.put((byte) 0x45).put((byte) 0).putShort((short) (20 + 8 + dhcpLength));
+        b.putInt(0).put((byte) 64).put(IPv4.PROTOCOL_UDP).putShort((short) 0);
+        b.putInt(0).putInt(-1);
+        b.putShort((short) UDP.DHCP_CLIENT_PORT).putShort((short) UDP.DHCP_SERVER_PORT);
+        b.putShort((short) (8 + dhcpLength)).putShort((short) 0);
+        int dhcp = b.position();
+        b.put((byte) 1).put((byte) 1).put((byte) 6).put((byte) 0).putInt(0x12345678);
+        b.position(dhcp + 28);
+        b.put(new byte[] {0, 0, 0, 0, 0, 1});
+        b.position(dhcp + 236);
+        b.putInt(0x63825363);
+        b.put((byte) 53).put((byte) 1).put((byte) 1).put((byte) 255);
+        return b.array();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                   .include(PacketClassifierBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
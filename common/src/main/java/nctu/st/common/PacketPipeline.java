@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.common;
+
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.packet.PacketContext;
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Hands packet-in work from the dispatch thread to a pool of workers.
+ *
+ * Packets are partitioned on their (src MAC, dst MAC) pair, or on a key the
+ * caller gives, so one flow is always handled by the same worker and in
+ * arrival order. Each worker has
+ * a bounded queue; when it is full the packet is dropped or flooded right
+ * away on the dispatch thread. A queued context is blocked, so handlers
+ * must reply with PacketService.emit instead of context.send. Each task
+ * carries the time its packet-in was received, so handlers can time
+ * events from it rather than from when a worker got to them.
+ */
+public class PacketPipeline {
+
+    /** Handles one packet-in on a worker. */
+    public interface Handler {
+        /** received is the System.nanoTime() the packet-in was submitted with. */
+        void handle(PacketContext context, long received);
+    }
+
+    /** What to do with a packet whose worker queue is full. */
+    public enum Overflow {
+        DROP,
+        FLOOD
+    }
+
+    private static final long REPORT_EVERY = 100000;
+
+    private final String name;
+    private final int queueSize;
+    private final Overflow overflow;
+    private final Handler handler;
+    private final Logger log;
+
+    private final Worker[] workers;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong flooded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Histogram queueLatency = new Histogram();
+    private final Histogram handleLatency = new Histogram();
+
+    public PacketPipeline(String name, int workerCount, int queueSize, Overflow overflow,
+                          Handler handler, Logger log){
+        this.name = name;
+        this.queueSize = queueSize;
+        this.overflow = overflow;
+        this.handler = handler;
+        this.log = log;
+        this.workers = new Worker[workerCount];
+    }
+
+    public void start(){
+        ThreadFactory factory = groupedThreads("nctu/" + name, "packet-worker-%d", log);
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(factory);
+        }
+        log.info("[PIPE] {} started with {} workers, queue {}, overflow {}",
+                 name, workers.length, queueSize, overflow);
+    }
+
+    public void stop(){
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] != null) {
+                workers[i].thread.interrupt();
+                workers[i] = null;
+            }
+        }
+        report();
+    }
+
+    /** Queues the packet on its flow's worker, received now. */
+    public boolean submit(PacketContext context){
+        return submit(context, System.nanoTime());
+    }
+
+    /**
+     * Queues the packet on its flow's worker with the System.nanoTime() it
+     * was received at. Returns false if the queue was full and the
+     * overflow policy was applied instead.
+     */
+    public boolean submit(PacketContext context, long received){
+        ByteBuffer frame = context.inPacket().unparsed();
+        int base = frame.position();
+        return submit(context, received, mac(frame, base + 6) * 0x9e3779b97f4a7c15L + mac(frame, base));
+    }
+
+    /**
+     * Queues the packet on the worker of the key rather than of its flow,
+     * so packets of several flows sharing a key are handled in order.
+     */
+    public boolean submit(PacketContext context, long received, long key){
+        Worker worker = workers[partition(key)];
+        if (worker != null && worker.queue.offer(new Task(context, received))) {
+            context.block();
+            if (submitted.incrementAndGet() % REPORT_EVERY == 0) {
+                report();
+            }
+            return true;
+        }
+
+        if (overflow == Overflow.FLOOD) {
+            flooded.incrementAndGet();
+            context.treatmentBuilder().setOutput(PortNumber.FLOOD);
+            context.send();
+        } else {
+            dropped.incrementAndGet();
+            context.block();
+        }
+        return false;
+    }
+
+    public void report(){
+        log.info("[PIPE] {}: {} queued, {} dropped, {} flooded, {} failed, " +
+                 "queue p50/p99 {}/{} us, handle p50/p99 {}/{} us",
+                 name, submitted.get(), dropped.get(), flooded.get(), failed.get(),
+                 queueLatency.percentile(0.5), queueLatency.percentile(0.99),
+                 handleLatency.percentile(0.5), handleLatency.percentile(0.99));
+    }
+
+    private int partition(long key){
+        long h = key * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 29;
+        return (int) ((h & Long.MAX_VALUE) % workers.length);
+    }
+
+    // MAC at the offset of the raw frame, no copy of the frame is parsed
+    private static long mac(ByteBuffer frame, int offset){
+        return ((frame.getShort(offset) & 0xffffL) << 32) | (frame.getInt(offset + 2) & 0xffffffffL);
+    }
+
+    private static final class Task {
+        private final PacketContext context;
+        private final long received;
+
+        private Task(PacketContext context, long received){
+            this.context = context;
+            this.received = received;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(queueSize);
+        private final Thread thread;
+
+        private Worker(ThreadFactory factory){
+            thread = factory.newThread(this);
+            thread.start();
+        }
+
+        @Override
+        public void run(){
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long start = System.nanoTime();
+                queueLatency.record(start - task.received);
+                try {
+                    handler.handle(task.context, task.received);
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    log.warn("[PIPE] {} handler failed", name, e);
+                }
+                handleLatency.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.common;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hop count Dijkstra over a topology snapshot.
+ *
+ * Queries only touch the snapshot's int arrays and an indexed 4-ary heap,
+ * so nothing is boxed and no adjacency lists are built per query. Hop
+ * counts towards many roots are found with one breadth first search per
+ * root, spread over a fork-join pool.
+ */
+public class PathEngine {
+
+    private static final int ARITY = 4;
+    private static final int INFINITY = Integer.MAX_VALUE;
+    // roots searched by one task of a batch
+    private static final int BATCH_SLICE = 8;
+
+    private final TopologySnapshot graph;
+    private final DeviceId[] devices;
+    private final int[] outOffset;
+    private final int[] outSource;
+    private final int[] outTarget;
+    private final Link[] links;
+    private final int[] inOffset;
+    private final int[] inEdge;
+
+    public PathEngine(TopologySnapshot graph){
+        this.graph = graph;
+        this.devices = graph.devices;
+        this.outOffset = graph.outOffset;
+        this.outSource = graph.outSource;
+        this.outTarget = graph.outTarget;
+        this.links = graph.links;
+        this.inOffset = graph.inOffset;
+        this.inEdge = graph.inEdge;
+    }
+
+    private int indexOf(DeviceId deviceId){
+        return graph.indexOf(deviceId);
+    }
+
+    /** Shortest path tree rooted at one device. */
+    public class Tree {
+        private final int[] dist;
+        private final int[] parent;
+
+        private Tree(int[] dist, int[] parent){
+            this.dist = dist;
+            this.parent = parent;
+        }
+
+        /** Hop count from the root, Integer.MAX_VALUE if unreachable. */
+        public int distance(DeviceId deviceId){
+            int v = indexOf(deviceId);
+            return v < 0 ? INFINITY : dist[v];
+        }
+
+        /** Link into the device on its shortest path from the root. */
+        public Link parentLink(DeviceId deviceId){
+            int v = indexOf(deviceId);
+            if (v < 0 || parent[v] < 0) {
+                return null;
+            }
+            return links[parent[v]];
+        }
+
+        public Map<DeviceId, Link> parentLinks(){
+            Map<DeviceId, Link> parentLink = new HashMap<DeviceId, Link>(devices.length * 2);
+            for (int v = 0; v < devices.length; v++) {
+                parentLink.put(devices[v], parent[v] < 0 ? null : links[parent[v]]);
+            }
+            return parentLink;
+        }
+    }
+
+    /** Single source shortest paths over every device. */
+    public Tree shortestPaths(DeviceId source){
+        int n = devices.length;
+        int[] dist = new int[n];
+        int[] parent = new int[n];
+        int src = indexOf(source);
+        Arrays.fill(dist, INFINITY);
+        Arrays.fill(parent, -1);
+        if (src >= 0) {
+            dijkstra(src, -1, dist, parent, false);
+        }
+        return new Tree(dist, parent);
+    }
+
+    /**
+     * Shortest paths from every device into one device. The parent link of
+     * a device is then the link leaving it towards the root.
+     */
+    public Tree shortestPathsTo(DeviceId target){
+        int n = devices.length;
+        int[] dist = new int[n];
+        int[] parent = new int[n];
+        int dst = indexOf(target);
+        Arrays.fill(dist, INFINITY);
+        Arrays.fill(parent, -1);
+        if (dst >= 0) {
+            dijkstra(dst, -1, dist, parent, true);
+        }
+        return new Tree(dist, parent);
+    }
+
+    /** Links of one shortest path, stopping as soon as the target is settled. */
+    public List<Link> path(DeviceId source, DeviceId target){
+        int src = indexOf(source);
+        int dst = indexOf(target);
+        if (src < 0 || dst < 0) {
+            return Collections.emptyList();
+        }
+        int n = devices.length;
+        int[] dist = new int[n];
+        int[] parent = new int[n];
+        Arrays.fill(dist, INFINITY);
+        Arrays.fill(parent, -1);
+        dijkstra(src, dst, dist, parent, false);
+        if (dist[dst] == INFINITY) {
+            return Collections.emptyList();
+        }
+
+        LinkedList<Link> path = new LinkedList<Link>();
+        for (int v = dst; v != src; v = outSource[parent[v]]) {
+            path.addFirst(links[parent[v]]);
+        }
+        return path;
+    }
+
+    /** Hop count from every device to the root, indexed like the snapshot. */
+    public int[] distancesTo(DeviceId root){
+        int[] dist = new int[devices.length];
+        Arrays.fill(dist, INFINITY);
+        int dst = indexOf(root);
+        if (dst >= 0) {
+            dijkstra(dst, -1, dist, null, true);
+        }
+        return dist;
+    }
+
+    /**
+     * Hop counts from every device to each of the roots, in the order of
+     * the list. The searches are split over the pool, or all run in the
+     * calling thread without one.
+     */
+    public int[][] distancesTo(List<DeviceId> roots, ForkJoinPool pool){
+        int[][] dist = new int[roots.size()][];
+        Batch batch = new Batch(roots, dist, 0, roots.size());
+        if (pool == null) {
+            batch.compute();
+        } else {
+            pool.invoke(batch);
+        }
+        return dist;
+    }
+
+    /** Links leaving the device on one of its shortest paths towards the root. */
+    public List<Link> nextHops(int[] dist, DeviceId deviceId){
+        int v = indexOf(deviceId);
+        if (v < 0 || dist[v] == INFINITY || dist[v] == 0) {
+            return Collections.emptyList();
+        }
+        List<Link> hops = new ArrayList<Link>(2);
+        for (int e = outOffset[v]; e < outOffset[v + 1]; e++) {
+            if (dist[outTarget[e]] + 1 == dist[v]) {
+                hops.add(links[e]);
+            }
+        }
+        return hops;
+    }
+
+    /**
+     * Every link that leaves a device on one of its shortest paths towards
+     * the root, so the lists hold all equal cost next hops.
+     */
+    public Map<DeviceId, List<Link>> equalCostParents(DeviceId root){
+        return equalCostParents(distancesTo(root));
+    }
+
+    /** Equal cost next hops given the distances to the root. */
+    public Map<DeviceId, List<Link>> equalCostParents(int[] dist){
+        int n = devices.length;
+        Map<DeviceId, List<Link>> multiLink = new HashMap<DeviceId, List<Link>>(n * 2);
+        for (int v = 0; v < n; v++) {
+            List<Link> eq_edges = new ArrayList<Link>();
+            if (dist[v] != INFINITY) {
+                for (int e = outOffset[v]; e < outOffset[v + 1]; e++) {
+                    int w = outTarget[e];
+                    if (dist[w] != INFINITY && dist[w] + 1 == dist[v]) {
+                        eq_edges.add(links[e]);
+                    }
+                }
+            }
+            multiLink.put(devices[v], eq_edges);
+        }
+        return multiLink;
+    }
+
+    // roots are halved until a slice is small enough for one task
+    private class Batch extends RecursiveAction {
+        private final List<DeviceId> roots;
+        private final int[][] dist;
+        private final int begin;
+        private final int end;
+
+        Batch(List<DeviceId> roots, int[][] dist, int begin, int end){
+            this.roots = roots;
+            this.dist = dist;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute(){
+            if (end - begin > BATCH_SLICE) {
+                int mid = (begin + end) >>> 1;
+                invokeAll(new Batch(roots, dist, begin, mid), new Batch(roots, dist, mid, end));
+                return;
+            }
+            int[] queue = new int[devices.length];
+            for (int i = begin; i < end; i++) {
+                dist[i] = new int[devices.length];
+                bfs(indexOf(roots.get(i)), dist[i], queue);
+            }
+        }
+    }
+
+    // walks the in-links, so dist becomes the distance to the root
+    private void bfs(int root, int[] dist, int[] queue){
+        Arrays.fill(dist, INFINITY);
+        if (root < 0) {
+            return;
+        }
+        dist[root] = 0;
+        queue[0] = root;
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int u = queue[head++];
+            int next = dist[u] + 1;
+            for (int k = inOffset[u]; k < inOffset[u + 1]; k++) {
+                int v = outSource[inEdge[k]];
+                if (dist[v] == INFINITY) {
+                    dist[v] = next;
+                    queue[tail++] = v;
+                }
+            }
+        }
+    }
+
+    // reverse walks the in-links, so dist becomes the distance to the root
+    private void dijkstra(int root, int target, int[] dist, int[] parent, boolean reverse){
+        IndexedHeap heap = new IndexedHeap(devices.length, dist);
+        dist[root] = 0;
+        heap.push(root);
+        while (!heap.isEmpty()) {
+            int u = heap.poll();
+            if (u == target) {
+                return;
+            }
+            int next = dist[u] + 1;
+            int begin = reverse ? inOffset[u] : outOffset[u];
+            int end = reverse ? inOffset[u + 1] : outOffset[u + 1];
+            for (int k = begin; k < end; k++) {
+                int e = reverse ? inEdge[k] : k;
+                int v = reverse ? outSource[e] : outTarget[e];
+                if (heap.settled(v) || next >= dist[v]) {
+                    continue;
+                }
+                dist[v] = next;
+                if (parent != null) {
+                    parent[v] = e;
+                }
+                heap.push(v);
+            }
+        }
+    }
+
+    /** d-ary min heap of vertices keyed by dist, with decrease-key. */
+    private static class IndexedHeap {
+        private static final int SETTLED = -2;
+
+        private final int[] heap;
+        private final int[] pos;
+        private final int[] key;
+        private int size;
+
+        IndexedHeap(int n, int[] key){
+            this.heap = new int[n];
+            this.pos = new int[n];
+            this.key = key;
+            Arrays.fill(pos, -1);
+        }
+
+        boolean isEmpty(){
+            return size == 0;
+        }
+
+        boolean settled(int v){
+            return pos[v] == SETTLED;
+        }
+
+        // inserts the vertex or restores order after its key decreased
+        void push(int v){
+            if (pos[v] < 0) {
+                heap[size] = v;
+                pos[v] = size;
+                size++;
+            }
+            siftUp(pos[v]);
+        }
+
+        int poll(){
+            int top = heap[0];
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                pos[heap[0]] = 0;
+                siftDown(0);
+            }
+            pos[top] = SETTLED;
+            return top;
+        }
+
+        private void siftUp(int i){
+            int v = heap[i];
+            while (i > 0) {
+                int p = (i - 1) / ARITY;
+                int u = heap[p];
+                if (key[u] <= key[v]) {
+                    break;
+                }
+                heap[i] = u;
+                pos[u] = i;
+                i = p;
+            }
+            heap[i] = v;
+            pos[v] = i;
+        }
+
+        private void siftDown(int i){
+            int v = heap[i];
+            while (true) {
+                int first = i * ARITY + 1;
+                if (first >= size) {
+                    break;
+                }
+                int best = first;
+                int last = Math.min(first + ARITY, size);
+                for (int c = first + 1; c < last; c++) {
+                    if (key[heap[c]] < key[heap[best]]) {
+                        best = c;
+                    }
+                }
+                if (key[heap[best]] >= key[v]) {
+                    break;
+                }
+                heap[i] = heap[best];
+                pos[heap[i]] = i;
+                i = best;
+            }
+            heap[i] = v;
+            pos[v] = i;
+        }
+    }
+}
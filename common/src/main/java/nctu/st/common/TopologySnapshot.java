@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.common;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyGraph;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable compressed sparse row view of one topology.
+ *
+ * Devices are numbered 0..n-1. The out-links of device v are the edges
+ * outOffset[v] up to outOffset[v + 1]; every edge has its source, target,
+ * output port and Link in parallel arrays. inEdge lists the same edges
+ * grouped by target, for walks towards a root.
+ */
+public final class TopologySnapshot {
+
+    private final Topology topology;
+    private final long buildNanos;
+
+    final DeviceId[] devices;
+    final Map<DeviceId, Integer> index;
+
+    final int[] outOffset;
+    final int[] outSource;
+    final int[] outTarget;
+    final long[] outPort;
+    final Link[] links;
+
+    final int[] inOffset;
+    final int[] inEdge;
+
+    private TopologySnapshot(Topology topology, TopologyGraph graph){
+        long start = System.nanoTime();
+        this.topology = topology;
+
+        Set<TopologyVertex> vertexes = graph.getVertexes();
+        int n = vertexes.size();
+        devices = new DeviceId[n];
+        index = new HashMap<DeviceId, Integer>(n * 2);
+        List<Set<TopologyEdge>> edgesFrom = new ArrayList<Set<TopologyEdge>>(n);
+        int m = 0;
+        for (TopologyVertex vtx : vertexes) {
+            int v = index.size();
+            devices[v] = vtx.deviceId();
+            index.put(vtx.deviceId(), v);
+            edgesFrom.add(graph.getEdgesFrom(vtx));
+            m += edgesFrom.get(v).size();
+        }
+
+        outOffset = new int[n + 1];
+        outSource = new int[m];
+        outTarget = new int[m];
+        outPort = new long[m];
+        links = new Link[m];
+        int[] inDegree = new int[n + 1];
+
+        int e = 0;
+        for (int v = 0; v < n; v++) {
+            outOffset[v] = e;
+            for (TopologyEdge edge : edgesFrom.get(v)) {
+                Integer dst = index.get(edge.dst().deviceId());
+                if (dst == null) {
+                    continue;
+                }
+                outSource[e] = v;
+                outTarget[e] = dst.intValue();
+                outPort[e] = edge.link().src().port().toLong();
+                links[e] = edge.link();
+                inDegree[dst.intValue() + 1]++;
+                e++;
+            }
+        }
+        outOffset[n] = e;
+
+        inOffset = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            inOffset[v + 1] = inOffset[v] + inDegree[v + 1];
+        }
+        inEdge = new int[e];
+        int[] fill = Arrays.copyOf(inOffset, n);
+        for (int k = 0; k < e; k++) {
+            inEdge[fill[outTarget[k]]++] = k;
+        }
+
+        buildNanos = System.nanoTime() - start;
+    }
+
+    /** Builds the snapshot of a topology from its graph. */
+    public static TopologySnapshot build(Topology topology, TopologyGraph graph){
+        return new TopologySnapshot(topology, graph);
+    }
+
+    public Topology topology(){
+        return topology;
+    }
+
+    public int deviceCount(){
+        return devices.length;
+    }
+
+    public int linkCount(){
+        return outOffset[devices.length];
+    }
+
+    /** Dense index of the device, -1 if it is not in the topology. */
+    public int indexOf(DeviceId deviceId){
+        Integer v = index.get(deviceId);
+        return v == null ? -1 : v.intValue();
+    }
+
+    public DeviceId device(int v){
+        return devices[v];
+    }
+
+    public Link link(int e){
+        return links[e];
+    }
+
+    public long buildNanos(){
+        return buildNanos;
+    }
+
+    /** Approximate heap held by the arrays and the device index. */
+    public long estimatedBytes(){
+        int n = devices.length;
+        int m = links.length;
+        long arrays = 4L * (outOffset.length + outSource.length + outTarget.length +
+                            inOffset.length + inEdge.length) +
+                      8L * outPort.length + 4L * (n + m);
+        // HashMap node, table slot and boxed Integer per device
+        return arrays + 64L * n;
+    }
+}
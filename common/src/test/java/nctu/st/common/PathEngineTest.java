@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nctu.st.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.provider.ProviderId;
+import org.onosproject.net.topology.DefaultTopologyEdge;
+import org.onosproject.net.topology.DefaultTopologyGraph;
+import org.onosproject.net.topology.DefaultTopologyVertex;
+import org.onosproject.net.topology.TopologyEdge;
+import org.onosproject.net.topology.TopologyVertex;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the path engine.
+ */
+public class PathEngineTest {
+
+    private static final ProviderId PID = new ProviderId("of", "test");
+
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId S2 = DeviceId.deviceId("of:0000000000000002");
+    private static final DeviceId S3 = DeviceId.deviceId("of:0000000000000003");
+    private static final DeviceId S4 = DeviceId.deviceId("of:0000000000000004");
+    private static final DeviceId S5 = DeviceId.deviceId("of:0000000000000005");
+    private static final DeviceId S6 = DeviceId.deviceId("of:0000000000000006");
+
+    private final Set<TopologyVertex> vertexes = new HashSet<>();
+    private final Set<TopologyEdge> edges = new HashSet<>();
+    private TopologySnapshot myGraph;
+
+    // diamond s1 - {s2, s3} - s4, plus a lone s5
+    @Before
+    public void setUp() {
+        for (DeviceId dID : new DeviceId[] {S1, S2, S3, S4, S5}) {
+            vertexes.add(new DefaultTopologyVertex(dID));
+        }
+        addBidirectional(S1, 1, S2, 1);
+        addBidirectional(S1, 2, S3, 1);
+        addBidirectional(S2, 2, S4, 1);
+        addBidirectional(S3, 2, S4, 2);
+        myGraph = TopologySnapshot.build(null, new DefaultTopologyGraph(vertexes, edges));
+    }
+
+    private void addBidirectional(DeviceId a, long aPort, DeviceId b, long bPort) {
+        ConnectPoint cpA = new ConnectPoint(a, PortNumber.portNumber(aPort));
+        ConnectPoint cpB = new ConnectPoint(b, PortNumber.portNumber(bPort));
+        addEdge(DefaultLink.builder().providerId(PID).src(cpA).dst(cpB)
+                           .type(Link.Type.DIRECT).build());
+        addEdge(DefaultLink.builder().providerId(PID).src(cpB).dst(cpA)
+                           .type(Link.Type.DIRECT).build());
+    }
+
+    private void addEdge(Link link) {
+        edges.add(new DefaultTopologyEdge(new DefaultTopologyVertex(link.src().deviceId()),
+                                          new DefaultTopologyVertex(link.dst().deviceId()),
+                                          link));
+    }
+
+    @Test
+    public void snapshot() {
+        assertEquals(5, myGraph.deviceCount());
+        assertEquals(8, myGraph.linkCount());
+        assertEquals(-1, myGraph.indexOf(DeviceId.deviceId("of:0000000000000009")));
+        assertEquals(S3, myGraph.device(myGraph.indexOf(S3)));
+    }
+
+    @Test
+    public void singleSource() {
+        PathEngine.Tree tree = new PathEngine(myGraph).shortestPaths(S1);
+        assertEquals(0, tree.distance(S1));
+        assertEquals(1, tree.distance(S2));
+        assertEquals(2, tree.distance(S4));
+        assertEquals(Integer.MAX_VALUE, tree.distance(S5));
+        assertNull(tree.parentLink(S1));
+        assertNull(tree.parentLink(S5));
+        assertEquals(S1, tree.parentLink(S3).src().deviceId());
+    }
+
+    @Test
+    public void singlePair() {
+        List<Link> path = new PathEngine(myGraph).path(S1, S4);
+        assertEquals(2, path.size());
+        assertEquals(S1, path.get(0).src().deviceId());
+        assertEquals(S4, path.get(1).dst().deviceId());
+        assertTrue(new PathEngine(myGraph).path(S1, S5).isEmpty());
+    }
+
+    @Test
+    public void equalCostParents() {
+        Map<DeviceId, List<Link>> multiLink = new PathEngine(myGraph).equalCostParents(S4);
+        assertEquals(2, multiLink.get(S1).size());
+        assertEquals(1, multiLink.get(S2).size());
+        assertEquals(S4, multiLink.get(S2).get(0).dst().deviceId());
+        assertTrue(multiLink.get(S4).isEmpty());
+        assertTrue(multiLink.get(S5).isEmpty());
+    }
+
+    @Test
+    public void distancesTo() {
+        int[] dist = new PathEngine(myGraph).distancesTo(S4);
+        assertEquals(2, dist[myGraph.indexOf(S1)]);
+        assertEquals(0, dist[myGraph.indexOf(S4)]);
+        assertEquals(Integer.MAX_VALUE, dist[myGraph.indexOf(S5)]);
+    }
+
+    @Test
+    public void distancesOverOneWayLink() {
+        // s6 is reached from s4 but cannot get back
+        vertexes.add(new DefaultTopologyVertex(S6));
+        ConnectPoint cpA = new ConnectPoint(S4, PortNumber.portNumber(3));
+        ConnectPoint cpB = new ConnectPoint(S6, PortNumber.portNumber(1));
+        addEdge(DefaultLink.builder().providerId(PID).src(cpA).dst(cpB)
+                           .type(Link.Type.DIRECT).build());
+        TopologySnapshot graph = TopologySnapshot.build(null, new DefaultTopologyGraph(vertexes, edges));
+        PathEngine engine = new PathEngine(graph);
+        assertEquals(Integer.MAX_VALUE, engine.distancesTo(S4)[graph.indexOf(S6)]);
+        assertEquals(3, engine.distancesTo(S6)[graph.indexOf(S1)]);
+        assertBatchMatches(graph, null);
+        assertBatchMatches(graph, ForkJoinPool.commonPool());
+    }
+
+    @Test
+    public void batchedInCallingThread() {
+        assertBatchMatches(myGraph, null);
+        assertBatchMatches(torus(8), null);
+    }
+
+    @Test
+    public void batchedOnPool() {
+        assertBatchMatches(myGraph, ForkJoinPool.commonPool());
+        assertBatchMatches(torus(8), ForkJoinPool.commonPool());
+    }
+
+    // every device of the snapshot and one it does not have, batched and one by one
+    private static void assertBatchMatches(TopologySnapshot graph, ForkJoinPool pool) {
+        PathEngine engine = new PathEngine(graph);
+        List<DeviceId> roots = new ArrayList<>();
+        for (int v = 0; v < graph.deviceCount(); v++) {
+            roots.add(graph.device(v));
+        }
+        roots.add(DeviceId.deviceId("of:00000000000003e7"));
+        int[][] dist = engine.distancesTo(roots, pool);
+        assertEquals(roots.size(), dist.length);
+        for (int i = 0; i < roots.size(); i++) {
+            assertArrayEquals(engine.distancesTo(roots.get(i)), dist[i]);
+        }
+    }
+
+    // device x + y * side, ports 1 and 2 along x, 3 and 4 along y, with wraparound
+    private TopologySnapshot torus(int side) {
+        vertexes.clear();
+        edges.clear();
+        DeviceId[] devices = new DeviceId[side * side];
+        for (int d = 0; d < devices.length; d++) {
+            devices[d] = DeviceId.deviceId(String.format("of:%016x", d + 1));
+            vertexes.add(new DefaultTopologyVertex(devices[d]));
+        }
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                DeviceId d = devices[x + y * side];
+                addBidirectional(d, 1, devices[(x + 1) % side + y * side], 2);
+                addBidirectional(d, 3, devices[x + (y + 1) % side * side], 4);
+            }
+        }
+        return TopologySnapshot.build(null, new DefaultTopologyGraph(vertexes, edges));
+    }
+
+}